@@ -8,52 +8,363 @@ Students should EXTEND this server by implementing
 the methods below.
 """
 
+import os
+import queue
+import re
 import socket
+import sqlite3
+import struct
 import sys
 import threading
+from concurrent.futures import Future, ThreadPoolExecutor
 
 
 SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
+# A client that opens with this null terminated hello and gets PROTOCOL_OK back talks in
+# length prefixed frames from then on (see serve_framed); any other first message is taken
+# as the basic protocol: null terminated SQL in, null terminated result out.
+PROTOCOL_HELLO = "PROTOCOL 2"
+PROTOCOL_OK = "OK 2"
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
-    while True:
-        chunk = sock.recv(1024)
+KIND_QUERY = ord("R")   # one query
+KIND_UPDATE = ord("W")  # statements run in one transaction
+
+
+class ClientReader:
+    """Buffered reads from a client socket, bytes read past a message are kept for the next one"""
+
+    def __init__(self, sock: socket.socket):
+        self.sock = sock
+        self.buf = bytearray()
+
+    def _fill(self) -> bool:
+        chunk = self.sock.recv(65536)
         if not chunk:
-            return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+            return False
+        self.buf += chunk
+        return True
 
+    def recv_null_terminated(self) -> str:
+        scanned = 0
+        while True:
+            end = self.buf.find(b"\0", scanned)
+            if end != -1:
+                msg = bytes(self.buf[:end])
+                del self.buf[:end + 1]
+                return msg.decode("utf-8", errors="replace")
+            scanned = len(self.buf)
+            if not self._fill():
+                return ""
 
-def init_database():
-    pass
+    def recv_exact(self, n: int):
+        while len(self.buf) < n:
+            if not self._fill():
+                return None
+        data = bytes(self.buf[:n])
+        del self.buf[:n]
+        return data
 
 
-def execute_sql_command(sql_command: str) -> str:
-    return "done"
+SCHEMA = """
+CREATE TABLE IF NOT EXISTS users (
+    username TEXT PRIMARY KEY,
+    password TEXT NOT NULL,
+    registration_date TEXT NOT NULL
+);
+CREATE TABLE IF NOT EXISTS login_history (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    username TEXT NOT NULL,
+    login_time TEXT NOT NULL,
+    logout_time TEXT
+);
+CREATE TABLE IF NOT EXISTS file_tracking (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    username TEXT NOT NULL,
+    filename TEXT NOT NULL,
+    upload_time TEXT NOT NULL,
+    game_channel TEXT
+);
+CREATE INDEX IF NOT EXISTS idx_users_registration ON users (registration_date);
+CREATE INDEX IF NOT EXISTS idx_login_history_user_time ON login_history (username, login_time);
+CREATE INDEX IF NOT EXISTS idx_login_history_time ON login_history (login_time);
+CREATE INDEX IF NOT EXISTS idx_file_tracking_user_time ON file_tracking (username, upload_time);
+CREATE INDEX IF NOT EXISTS idx_file_tracking_time ON file_tracking (upload_time);
+"""
 
+READ_POOL_SIZE = 4      # queries run concurrently on this many connections
+MAX_GROUP_SIZE = 256    # most write requests committed together
 
-def execute_sql_query(sql_query: str) -> str:
-    return "done"
+TRANSACTION_CONTROL = re.compile(r"\s*(BEGIN|COMMIT|END|ROLLBACK)\b", re.IGNORECASE)
 
+writer = None           # the GroupCommitWriter, set by init_database
+verbose = False         # print every framed request, set by --verbose
+readers = None          # executor running the queries
+read_local = threading.local()
 
-def handle_client(client_socket: socket.socket, addr):
-    print(f"[{SERVER_NAME}] Client connected from {addr}")
 
+def connect() -> sqlite3.Connection:
+    # Autocommit mode, transactions are started and ended explicitly
+    conn = sqlite3.connect(DB_FILE, isolation_level=None, check_same_thread=False, timeout=5)
+    conn.execute("PRAGMA busy_timeout=5000")
+    return conn
+
+
+class GroupCommitWriter(threading.Thread):
+    """
+    The only connection that writes. Every write request waiting when the writer gets to it is
+    committed in one transaction, one fsync for all of them. Each request runs in its own
+    savepoint, so a failing request is rolled back without failing the rest of the group.
+    """
+
+    def __init__(self):
+        super().__init__(name="sql-writer", daemon=True)
+        self.requests = queue.Queue()
+        self.conn = connect()
+        self.conn.execute("PRAGMA synchronous=FULL")
+
+    def submit(self, statements) -> Future:
+        """Queue (sql, params) statements that run in a single transaction"""
+        future = Future()
+        self.requests.put((statements, future))
+        return future
+
+    def run(self):
+        while True:
+            group = [self.requests.get()]
+            while len(group) < MAX_GROUP_SIZE:
+                try:
+                    group.append(self.requests.get_nowait())
+                except queue.Empty:
+                    break
+            self.commit(group)
+
+    def commit(self, group):
+        results = {}
+        outcome = None      # results once the group is committed or has failed
+        try:
+            self.conn.execute("BEGIN IMMEDIATE")
+            for statements, future in group:
+                self.conn.execute("SAVEPOINT request")
+                try:
+                    for sql, params in statements:
+                        self.conn.execute(sql, params)
+                    self.conn.execute("RELEASE request")
+                    results[future] = "SUCCESS"
+                except Exception as e:
+                    # Not only sqlite3.Error, a parameter sqlite cannot bind raises OverflowError and the like
+                    self.conn.execute("ROLLBACK TO request")
+                    self.conn.execute("RELEASE request")
+                    results[future] = f"ERROR:{e}"
+            self.conn.execute("COMMIT")
+            outcome = results
+        except Exception as e:
+            self.rollback()
+            outcome = {future: f"ERROR:{e}" for _, future in group}
+        finally:
+            # Every request is answered whatever failed, a client waits for each one
+            for _, future in group:
+                if not future.done():
+                    future.set_result((outcome or {}).get(future, "ERROR:not committed"))
+
+    def rollback(self):
+        try:
+            if self.conn.in_transaction:
+                self.conn.execute("ROLLBACK")
+        except Exception as e:
+            print(f"[{SERVER_NAME}] Rollback failed: {e}")
+
+
+def split_script(script: str):
+    """
+    Statements of a basic protocol script, a semicolon inside a literal does not split;
+    BEGIN / COMMIT are left out, a request is a transaction anyway
+    """
+    statements = []
+    current = ""
+    for piece in script.split(";"):
+        current += piece + ";"
+        if sqlite3.complete_statement(current):
+            sql = current.strip().rstrip(";").strip()
+            if sql and not TRANSACTION_CONTROL.match(sql):
+                statements.append((sql, ()))
+            current = ""
+    sql = current.strip().rstrip(";").strip()
+    if sql:
+        statements.append((sql, ()))
+    return statements
+
+
+def run_query(sql_query: str, params) -> str:
+    conn = getattr(read_local, "conn", None)
+    if conn is None:
+        conn = read_local.conn = connect()
+        conn.execute("PRAGMA query_only=ON")
     try:
+        rows = conn.execute(sql_query, params).fetchall()
+    except sqlite3.Error as e:
+        return f"ERROR:{e}"
+    return "|".join(["SUCCESS"] + [str(row) for row in rows])
+
+
+def init_database():
+    global writer, readers
+    conn = connect()
+    # WAL: readers do not block the writer and the writer does not block readers
+    conn.execute("PRAGMA journal_mode=WAL")
+    conn.executescript(SCHEMA)
+    conn.close()
+    writer = GroupCommitWriter()
+    writer.start()
+    readers = ThreadPoolExecutor(max_workers=READ_POOL_SIZE, thread_name_prefix="sql-reader")
+
+
+def submit_query(sql_query: str, params=()) -> Future:
+    return readers.submit(run_query, sql_query, params)
+
+
+def submit_transaction(statements) -> Future:
+    return writer.submit(statements)
+
+
+def execute_sql_command(sql_command: str, params=()) -> str:
+    return submit_transaction(split_script(sql_command) if not params else [(sql_command, params)]).result()
+
+
+def execute_sql_query(sql_query: str, params=()) -> str:
+    return submit_query(sql_query, params).result()
+
+
+def execute_text(message: str) -> str:
+    if message.lstrip().upper().startswith("SELECT"):
+        return execute_sql_query(message)
+    return execute_sql_command(message)
+
+
+def read_string(payload: bytes, offset: int):
+    (length,) = struct.unpack_from(">i", payload, offset)
+    offset += 4
+    return payload[offset:offset + length].decode("utf-8", errors="replace"), offset + length
+
+
+def parse_request(payload: bytes):
+    """
+    int id, byte kind, short count, and count times: string sql, short n, n parameters
+    parameter: 'S' string | 'L' long | 'N' null, string: int length + UTF-8 bytes
+    """
+    request_id, kind, count = struct.unpack_from(">iBH", payload, 0)
+    offset = 7
+    statements = []
+    for _ in range(count):
+        sql, offset = read_string(payload, offset)
+        (n,) = struct.unpack_from(">H", payload, offset)
+        offset += 2
+        params = []
+        for _ in range(n):
+            tag = payload[offset]
+            offset += 1
+            if tag == ord("S"):
+                value, offset = read_string(payload, offset)
+            elif tag == ord("L"):
+                (value,) = struct.unpack_from(">q", payload, offset)
+                offset += 8
+            elif tag == ord("N"):
+                value = None
+            else:
+                raise ValueError(f"unknown parameter type {tag}")
+            params.append(value)
+        statements.append((sql, tuple(params)))
+    return request_id, kind, statements
+
+
+def serve_text(client_socket: socket.socket, reader: ClientReader, message: str):
+    """The basic protocol, one null terminated request at a time"""
+    while message != "":
+        print(f"[{SERVER_NAME}] Received:")
+        print(message)
+
+        client_socket.sendall(execute_text(message).encode("utf-8") + b"\0")
+        message = reader.recv_null_terminated()
+
+
+def send_responses(client_socket: socket.socket, responses: queue.Queue):
+    """Write the responses of a framed client, all that are ready in one send; None ends it"""
+    while True:
+        frame = responses.get()
+        if frame is None:
+            return
+        out = bytearray(frame)
         while True:
-            message = recv_null_terminated(client_socket)
-            if message == "":
+            try:
+                frame = responses.get_nowait()
+            except queue.Empty:
                 break
+            if frame is None:
+                client_socket.sendall(out)
+                return
+            out += frame
+        try:
+            client_socket.sendall(out)
+        except OSError:
+            return
+
+
+def serve_framed(client_socket: socket.socket, reader: ClientReader):
+    """
+    Frames are a 4 byte big-endian length and that many bytes, a response is int id + the UTF-8 result.
+    Requests are not waited for: writes go to the group commit writer and queries to the read pool,
+    the next request is read meanwhile; responses go out as they complete, in any order.
+    """
+    responses = queue.Queue()
+    sender = threading.Thread(target=send_responses, args=(client_socket, responses), daemon=True)
+    sender.start()
+
+    def respond(request_id, future):
+        body = future.result().encode("utf-8")
+        responses.put(struct.pack(">ii", 4 + len(body), request_id) + body)
+
+    try:
+        while True:
+            header = reader.recv_exact(4)
+            if header is None:
+                return
+            (length,) = struct.unpack(">i", header)
+            payload = reader.recv_exact(length)
+            if payload is None:
+                return
+
+            request_id, kind, statements = parse_request(payload)
+            if verbose:
+                print(f"[{SERVER_NAME}] Received #{request_id}:")
+                for sql, params in statements:
+                    print(sql, params if params else "")
+
+            if kind == KIND_QUERY:
+                sql, params = statements[0]
+                future = submit_query(sql, params)
+            elif kind == KIND_UPDATE:
+                future = submit_transaction(statements)
+            else:
+                future = Future()
+                future.set_result(f"ERROR:unknown request kind {kind}")
+            future.add_done_callback(lambda done, request_id=request_id: respond(request_id, done))
+    finally:
+        responses.put(None)
+        sender.join()
 
-            print(f"[{SERVER_NAME}] Received:")
-            print(message)
 
-            client_socket.sendall(b"done\0")
+def handle_client(client_socket: socket.socket, addr):
+    print(f"[{SERVER_NAME}] Client connected from {addr}")
+
+    try:
+        reader = ClientReader(client_socket)
+        message = reader.recv_null_terminated()
+        if message == PROTOCOL_HELLO:
+            client_socket.sendall(PROTOCOL_OK.encode("utf-8") + b"\0")
+            serve_framed(client_socket, reader)
+        else:
+            serve_text(client_socket, reader, message)
 
     except Exception as e:
         print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
@@ -65,24 +376,43 @@ def handle_client(client_socket: socket.socket, addr):
         print(f"[{SERVER_NAME}] Client {addr} disconnected")
 
 
-def start_server(host="127.0.0.1", port=7778):
+def accept_clients(server_socket: socket.socket):
+    while True:
+        client_socket, addr = server_socket.accept()
+        t = threading.Thread(
+            target=handle_client,
+            args=(client_socket, addr or "unix socket"),
+            daemon=True
+        )
+        t.start()
+
+
+def start_unix_listener(path: str):
+    """Also serve clients on the same host through a unix socket file, without the TCP stack"""
+    if os.path.exists(path):
+        os.unlink(path)
+    unix_socket = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+    unix_socket.bind(path)
+    unix_socket.listen(5)
+    print(f"[{SERVER_NAME}] Listening on unix socket {path}")
+    threading.Thread(target=accept_clients, args=(unix_socket,), daemon=True).start()
+
+
+def start_server(host="127.0.0.1", port=7778, unix_path=None):
     server_socket = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
     server_socket.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
 
+    init_database()
+    if unix_path:
+        start_unix_listener(unix_path)
+
     try:
         server_socket.bind((host, port))
         server_socket.listen(5)
         print(f"[{SERVER_NAME}] Server started on {host}:{port}")
         print(f"[{SERVER_NAME}] Waiting for connections...")
 
-        while True:
-            client_socket, addr = server_socket.accept()
-            t = threading.Thread(
-                target=handle_client,
-                args=(client_socket, addr),
-                daemon=True
-            )
-            t.start()
+        accept_clients(server_socket)
 
     except KeyboardInterrupt:
         print(f"\n[{SERVER_NAME}] Shutting down server...")
@@ -94,12 +424,23 @@ def start_server(host="127.0.0.1", port=7778):
 
 
 if __name__ == "__main__":
+    # sql_server.py [port] [--unix <socket path>] [--verbose]
+    args = sys.argv[1:]
+    if "--verbose" in args:
+        verbose = True
+        args.remove("--verbose")
+    unix_path = None
+    if "--unix" in args:
+        i = args.index("--unix")
+        unix_path = args[i + 1] if i + 1 < len(args) else "stomp_server.sock"
+        del args[i:i + 2]
+
     port = 7778
-    if len(sys.argv) > 1:
-        raw_port = sys.argv[1].strip()
+    if len(args) > 0:
+        raw_port = args[0].strip()
         try:
             port = int(raw_port)
         except ValueError:
             print(f"Invalid port '{raw_port}', falling back to default {port}")
 
-    start_server(port=port)
+    start_server(port=port, unix_path=unix_path)
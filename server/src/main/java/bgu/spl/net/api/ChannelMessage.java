@@ -0,0 +1,16 @@
+package bgu.spl.net.api;
+
+/**
+ * A message sent to every subscriber of a channel. The same instance is
+ * encoded once per subscriber, after being told that subscriber's
+ * subscription id.
+ */
+public interface ChannelMessage extends EncodableMessage {
+
+    /**
+     * called right before the message is encoded for the next subscriber
+     *
+     * @param subscriptionId the id the subscriber used when subscribing
+     */
+    void prepare(int subscriptionId);
+}
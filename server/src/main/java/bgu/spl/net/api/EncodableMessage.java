@@ -0,0 +1,34 @@
+package bgu.spl.net.api;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A message that writes its own encoded bytes, so it can be encoded straight
+ * into an outgoing buffer without first being built as a message object.
+ * Connection handlers encode it before their send returns and do not keep it.
+ */
+public interface EncodableMessage {
+
+    /**
+     * writes the encoded message into the given buffer
+     *
+     * @param out the buffer to write into
+     * @return true if the whole message was written, false if it does not fit
+     * (the buffer is then left as it was)
+     */
+    boolean encodeTo(ByteBuffer out);
+
+    /**
+     * encodes the message to a new bytes array
+     *
+     * @return the encoded bytes
+     */
+    default byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 10);
+        while (!encodeTo(buf)) {
+            buf = ByteBuffer.allocate(buf.capacity() * 2);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+}
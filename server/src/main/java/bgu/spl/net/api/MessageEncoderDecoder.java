@@ -1,5 +1,7 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +13,26 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add the bytes remaining in the given buffer to the decoding process,
+     * stopping right after the first completed message.
+     * implementations may override this to consume bytes in bulk.
+     *
+     * @param buffer the bytes to consider, its position is advanced past the
+     * consumed bytes
+     * @return a message if one was completed or null if the buffer was drained
+     * without completing one.
+     */
+    default T decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                return nextMessage;
+            }
+        }
+        return null;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +41,21 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message straight into the given buffer
+     *
+     * @param message the message to encode
+     * @param out the buffer to write into
+     * @return true if the whole message was written, false if it does not fit
+     * (the buffer is then left as it was)
+     */
+    default boolean encodeTo(T message, ByteBuffer out) {
+        byte[] bytes = encode(message);
+        if (bytes.length > out.remaining()) {
+            return false;
+        }
+        out.put(bytes);
+        return true;
+    }
+
 }
@@ -13,4 +13,12 @@ public interface StompMessagingProtocol<T> extends MessagingProtocol<T> {
      * and the shared Connections implementation
      */
     void start(int connectionId, Connections<T> connections);
+
+    /**
+     * YA - called by the server when the connection was closed without the protocol terminating it
+     * YA - (socket closed by the client, missed heart-beats), on the thread that processes its messages;
+     * YA - the reactor calls it for every closed connection, it does nothing if nothing is left to clean up
+     */
+    default void connectionLost() {
+    }
 }
@@ -0,0 +1,240 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Write-behind queue for the audit statements (registrations, logins, logouts and file uploads).
+ * The caller only queues a statement, a background writer sends the queued statements to the
+ * SQL server in batches, each batch as one transaction. A batch is written once it holds
+ * batchSize statements or its first statement waited flushMillis, whichever comes first.
+ * Statements are written in the order they were queued.
+ */
+public class AuditLog {
+
+	public enum Mode {
+		/** Write on the caller's thread, nothing is queued */
+		OFF,
+		/** Queue and return at once */
+		ASYNC,
+		/**
+		 * Queue and return once the batch holding the statement was written; the writer does not
+		 * wait for the batch to fill up, statements queued while a batch is being written go together
+		 * into the next one
+		 */
+		DURABLE
+	}
+
+	public enum Overflow {
+		/** Wait for room in the queue */
+		BLOCK,
+		/** Discard the statement */
+		DROP
+	}
+
+	private final Function<List<SqlStatement>, String> executor;
+	private final Mode mode;
+	private final Overflow overflow;
+	private final int batchSize;
+	private final long flushNanos;
+	private final BlockingQueue<Entry> queue;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param executor runs statements in one transaction and returns the response of the SQL server
+	 * @param capacity most statements waiting in the queue
+	 * @param batchSize most statements written in one transaction
+	 * @param flushMillis longest time a statement waits for its batch to fill up
+	 */
+	public AuditLog(Function<List<SqlStatement>, String> executor, Mode mode, Overflow overflow,
+					int capacity, int batchSize, long flushMillis) {
+		this.executor = executor;
+		this.mode = mode;
+		this.overflow = overflow;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+		this.queue = mode == Mode.OFF ? null : new ArrayBlockingQueue<>(capacity);
+
+		if (mode != Mode.OFF) {
+			Thread writer = new Thread(this::run, "audit-writer");
+			writer.setDaemon(true);
+			writer.start();
+			// Write what is still queued when the server exits
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "audit-shutdown"));
+		}
+	}
+
+	/**
+	 * Queue an INSERT or UPDATE statement, or write it right away when the log is off
+	 */
+	public void submit(SqlStatement statement) {
+		if (mode == Mode.OFF) {
+			write(Collections.singletonList(statement));
+			return;
+		}
+		Entry entry = new Entry(statement, mode == Mode.DURABLE);
+		if (!enqueue(entry, overflow)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (mode == Mode.DURABLE)
+			entry.await(0);
+	}
+
+	/**
+	 * Wait until everything queued so far was written, e.g. before reading the tables
+	 * @param timeoutMillis longest wait, 0 to wait for as long as it takes
+	 */
+	public void flush(long timeoutMillis) {
+		if (mode == Mode.OFF)
+			return;
+		Entry marker = new Entry(null, true);
+		if (enqueue(marker, Overflow.BLOCK))
+			marker.await(timeoutMillis);
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("audit log (%s): written=%d batches=%d failed=%d dropped=%d queued=%d",
+				mode.name().toLowerCase(), getWrittenCount(), getBatchCount(), getFailedCount(), getDroppedCount(),
+				queue == null ? 0 : queue.size());
+	}
+
+	private boolean enqueue(Entry entry, Overflow overflow) {
+		if (overflow == Overflow.DROP)
+			return queue.offer(entry);
+		try {
+			queue.put(entry);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void run() {
+		List<Entry> batch = new ArrayList<>(batchSize);
+		while (true) {
+			try {
+				fill(batch);
+			} catch (InterruptedException e) {
+				return;
+			}
+			writeBatch(batch);
+			for (Entry entry : batch)
+				entry.complete();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Wait for a statement, then gather more until the batch is full, its time is up
+	 * or someone waits for it to be written
+	 */
+	private void fill(List<Entry> batch) throws InterruptedException {
+		Entry first = queue.take();
+		batch.add(first);
+		boolean urgent = first.urgent;
+		long deadline = System.nanoTime() + flushNanos;
+		while (batch.size() < batchSize) {
+			// Whatever is queued already goes into the batch, even if it is urgent
+			int from = batch.size();
+			queue.drainTo(batch, batchSize - from);
+			for (int i = from; i < batch.size(); i++)
+				urgent |= batch.get(i).urgent;
+			if (urgent || batch.size() >= batchSize)
+				return;
+			long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return;
+			Entry next = queue.poll(left, TimeUnit.NANOSECONDS);
+			if (next == null)
+				return;
+			batch.add(next);
+			urgent = next.urgent;
+		}
+	}
+
+	private void writeBatch(List<Entry> batch) {
+		List<SqlStatement> statements = new ArrayList<>(batch.size());
+		for (Entry entry : batch) {
+			if (entry.statement != null)
+				statements.add(entry.statement);
+		}
+		if (!statements.isEmpty())
+			write(statements);
+	}
+
+	private void write(List<SqlStatement> statements) {
+		String response = executor.apply(statements);
+		batches.incrementAndGet();
+		if (response != null && response.startsWith("ERROR"))
+			failed.addAndGet(statements.size());
+		else
+			written.addAndGet(statements.size());
+	}
+
+	/**
+	 * A queued statement, or no statement for a flush of the queue
+	 * Someone waits for an urgent entry, it is written without waiting for the batch to fill up
+	 */
+	private static class Entry {
+		final SqlStatement statement;
+		final boolean urgent;
+		private boolean done = false;
+
+		Entry(SqlStatement statement, boolean urgent) {
+			this.statement = statement;
+			this.urgent = urgent;
+		}
+
+		synchronized void complete() {
+			done = true;
+			notifyAll();
+		}
+
+		synchronized void await(long timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			try {
+				while (!done) {
+					if (timeoutMillis == 0) {
+						wait();
+					} else {
+						long left = deadline - System.currentTimeMillis();
+						if (left <= 0)
+							return;
+						wait(left);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
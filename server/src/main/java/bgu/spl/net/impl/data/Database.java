@@ -1,244 +1,267 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Database {
-	private final ConcurrentHashMap<String, User> userMap;
-	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	// Same format as SQLite's datetime('now')
+	private static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-	private Database() {
-		userMap = new ConcurrentHashMap<>();
-		connectionsIdMap = new ConcurrentHashMap<>();
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
-	}
+	private final UserRegistry users;
+	private final Storage storage;
+	// null when users are not kept across restarts
+	private final UserStore userStore;
+	private final UserActivity activity = new UserActivity();
+	private final String startedAt = now();
+	// Rows the report reads from the storage at a time
+	private final int reportPageSize = Integer.getInteger("stomp.report.pageSize", 1000);
 
-	public static Database getInstance() {
-		return Instance.instance;
+	private Database() {
+		// Registered users are loaded from -Dstomp.users.file (a snapshot and the journal of the users
+		// registered since), a new snapshot is taken every -Dstomp.users.snapshotSeconds (60) if
+		// anyone registered. An empty file name keeps the users in memory only
+		this(openStorage(), openUserStore(), Long.getLong("stomp.users.snapshotSeconds", 60));
 	}
 
 	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
+	 * A database of its own, for tools that exercise it (see LoginStressTool)
+	 * @param userStore Where registered users are kept, null to keep them in memory only
+	 * @param snapshotSeconds Period of the user snapshots, 0 for a snapshot at shutdown only
 	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
+	Database(Storage storage, UserStore userStore, long snapshotSeconds) {
+		this.storage = storage;
+		this.userStore = userStore;
+		ConcurrentHashMap<String, User> userMap;
+		if (userStore == null) {
+			userMap = new ConcurrentHashMap<>(UserStore.MIN_USERS);
+		} else {
+			long start = System.nanoTime();
+			try {
+				userMap = userStore.load();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot load the users", e);
+			}
+			System.out.println("Loaded " + userMap.size() + " users in " + (System.nanoTime() - start) / 1000000 + " ms");
+			userStore.startSnapshots(userMap.values(), snapshotSeconds);
+		}
+		users = new UserRegistry(userMap, userStore);
+	}
+
+	private static UserStore openUserStore() {
+		String usersFile = System.getProperty("stomp.users.file", "stomp_server.users");
+		return usersFile.isEmpty() ? null : new UserStore(Paths.get(usersFile));
+	}
+
+	private static Storage openStorage() {
+		// Registrations, logins and file uploads are kept by -Dstomp.storage=sql (the SQL server, default)
+		// or -Dstomp.storage=journal (a journal file inside this process, -Dstomp.journal.file)
+		if ("journal".equalsIgnoreCase(System.getProperty("stomp.storage", "sql"))) {
+			try {
+				return new JournalStorage(Paths.get(System.getProperty("stomp.journal.file", "stomp_server.journal")));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot open the journal", e);
 			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
 		}
+		// SQL server connection details
+		return new SqlStorage("127.0.0.1", 7778);
+	}
+
+	public static Database getInstance() {
+		return Instance.instance;
 	}
 
 	/**
-	 * Escape SQL special characters to prevent SQL injection
+	 * Current UTC time, taken when the event happens rather than when the audit log gets to write it
 	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
+	private String now() {
+		return LocalDateTime.now(ZoneOffset.UTC).format(SQL_TIME);
 	}
 
 	public void addUser(User user) {
-		userMap.putIfAbsent(user.name, user);
-		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
+		users.add(user);
 	}
 
 	public LoginStatus login(int connectionId, String username, String password) {
-		if (connectionsIdMap.containsKey(connectionId)) {
-			return LoginStatus.CLIENT_ALREADY_CONNECTED;
-		}
-		if (addNewUserCase(connectionId, username, password)) {
-			// Log new user registration in SQL
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
-			
+		LoginStatus status = users.login(connectionId, username, password);
+		if (status == LoginStatus.ADDED_NEW_USER) {
+			// Log new user registration
+			storage.registerUser(username, password, now());
+
 			// Log login
 			logLogin(username);
-			return LoginStatus.ADDED_NEW_USER;
-		} else {
-			LoginStatus status = userExistsCase(connectionId, username, password);
-			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-				// Log successful login in SQL
-				logLogin(username);
-			}
-			return status;
+		} else if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
+			// Log successful login
+			logLogin(username);
 		}
+		return status;
 	}
 
 	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
-	}
-
-	private LoginStatus userExistsCase(int connectionId, String username, String password) {
-		User user = userMap.get(username);
-		synchronized (user) {
-			if (user.isLoggedIn()) {
-				return LoginStatus.ALREADY_LOGGED_IN;
-			} else if (!user.password.equals(password)) {
-				return LoginStatus.WRONG_PASSWORD;
-			} else {
-				user.login();
-				user.setConnectionId(connectionId);
-				connectionsIdMap.put(connectionId, user);
-				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
-			}
-		}
+		String time = now();
+		storage.logLogin(username, time);
+		activity.login(username, time);
 	}
 
-	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
+	/**
+	 * Write the users registered so far to the user store now, instead of shortly
+	 */
+	void flushUsers() throws IOException {
+		if (userStore != null) {
+			userStore.flush();
 		}
-		return false;
 	}
 
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
+		// Only one logout of a connection gets the user
+		User user = users.disconnect(connectionsId);
 		if (user != null) {
-			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
-			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
+			// Log logout, before another connection can log in as this user
+			String time = now();
+			storage.logLogout(user.name, time);
+			activity.logout(user.name, time);
+
+			user.logout(connectionsId);
 		}
 	}
 
 	/**
-	 * Track file upload in SQL database
+	 * Track file upload
 	 * @param username User who uploaded the file
 	 * @param filename Name of the file
 	 * @param gameChannel Game channel the file was reported to
 	 */
 	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
+		trackFileUploads(username, Collections.singletonList(new FileUpload(filename, gameChannel)));
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Track several file uploads of the same user at once
+	 * @param username User who uploaded the files
+	 * @param uploads Files and the game channels they were reported to
+	 */
+	public void trackFileUploads(String username, Collection<FileUpload> uploads) {
+		if (uploads.isEmpty()) return;
+		String time = now();
+		storage.trackFileUploads(username, uploads, time);
+		activity.uploads(username, uploads.size(), time);
+	}
+
+	/**
+	 * Generate and print server report to the standard output
 	 */
 	public void printReport() {
-		System.out.println(repeat("=", 80));
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println(repeat("=", 80));
+		try {
+			printReport(new OutputStreamWriter(System.out));
+		} catch (IOException e) {
+			System.err.println("Report Error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Generate server report and write it to out, a file or a socket. The per user summary comes
+	 * from memory; the registered users, login history and file uploads are read from the storage
+	 * and written a page at a time, so the report never holds a whole table
+	 * @param out Where to write the report, flushed but not closed
+	 */
+	public void printReport(Writer out) throws IOException {
+		// The report reads what was stored, so it waits for the writes made before it
+		storage.flush();
+		BufferedWriter report = out instanceof BufferedWriter ? (BufferedWriter) out : new BufferedWriter(out, 1 << 16);
+		println(report, repeat("=", 80));
+		println(report, "SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
+		println(report, repeat("=", 80));
 		
 		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
+		println(report, "\n1. REGISTERED USERS:");
+		println(report, repeat("-", 80));
+		int[] rows = {0};
+		boolean read = storage.users(reportPageSize, page -> {
+			for (String[] user : page) {
+				println(report, "   " + user[0] + " (registered " + user[1] + ")");
 			}
+			rows[0] += page.size();
+		});
+		if (read && rows[0] == 0) {
+			println(report, "   No users registered");
 		}
 		
 		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
+		println(report, "\n2. LOGIN HISTORY:");
+		println(report, repeat("-", 80));
+		rows[0] = 0;
+		String[] currentUser = {""};
+		read = storage.loginHistory(reportPageSize, page -> {
+			for (String[] fields : page) {
+				if (!fields[0].equals(currentUser[0])) {
+					currentUser[0] = fields[0];
+					println(report, "\n   User: " + currentUser[0]);
 				}
-			} else {
-				System.out.println("   No login history");
+				println(report, "      Login:  " + fields[1]);
+				println(report, "      Logout: " + (fields[2] == null ? "Still logged in" : fields[2]));
 			}
+			rows[0] += page.size();
+		});
+		if (read && rows[0] == 0) {
+			println(report, "   No login history");
 		}
 		
 		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
+		println(report, "\n3. FILE UPLOADS:");
+		println(report, repeat("-", 80));
+		rows[0] = 0;
+		currentUser[0] = "";
+		read = storage.fileUploads(reportPageSize, page -> {
+			for (String[] fields : page) {
+				if (!fields[0].equals(currentUser[0])) {
+					currentUser[0] = fields[0];
+					println(report, "\n   User: " + currentUser[0]);
 				}
-			} else {
-				System.out.println("   No files uploaded");
+				println(report, "      File: " + fields[1]);
+				println(report, "      Time: " + fields[2]);
+				println(report, "      Game: " + fields[3]);
+				println(report, "");
 			}
+			rows[0] += page.size();
+		});
+		if (read && rows[0] == 0) {
+			println(report, "   No files uploaded");
+		}
+
+		// Counts per user, kept in memory
+		println(report, "\n4. USER ACTIVITY SINCE SERVER START (" + startedAt + "):");
+		println(report, repeat("-", 80));
+		boolean any = false;
+		for (UserActivity.Entry entry : activity.entries()) {
+			any = true;
+			User user = users.get(entry.username);
+			println(report, "   " + entry.username + ": " + entry.logins.get() + " logins, " + entry.uploads.get() + " files");
+			println(report, "      Last login:  " + (entry.lastLogin == null ? "-" : entry.lastLogin));
+			println(report, "      Last logout: " + (user != null && user.isLoggedIn() ? "Still logged in"
+					: entry.lastLogout == null ? "-" : entry.lastLogout));
+			println(report, "      Last file:   " + (entry.lastUpload == null ? "-" : entry.lastUpload));
+		}
+		if (!any) {
+			println(report, "   No activity");
 		}
 		
-	System.out.println(repeat("=", 80));
-}
+		println(report, repeat("=", 80));
+		report.flush();
+	}
+
+	private static void println(BufferedWriter out, String line) throws IOException {
+		out.write(line);
+		out.newLine();
+	}
 
 private String repeat(String str, int times) {
 	StringBuilder sb = new StringBuilder();
@@ -0,0 +1,29 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Objects;
+
+/**
+ * A single reported file, tracked in the file_tracking table.
+ */
+public class FileUpload {
+	public final String filename;
+	public final String gameChannel;
+
+	public FileUpload(String filename, String gameChannel) {
+		this.filename = filename;
+		this.gameChannel = gameChannel;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof FileUpload)) return false;
+		FileUpload other = (FileUpload) o;
+		return filename.equals(other.filename) && gameChannel.equals(other.gameChannel);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(filename, gameChannel);
+	}
+}
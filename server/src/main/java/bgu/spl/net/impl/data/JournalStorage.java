@@ -0,0 +1,335 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage inside the server process: an append-only journal file, memory mapped, replayed into
+ * memory when the server starts. Nothing goes through the SQL server.
+ *
+ * Every record is [int length][byte type][fields], each field an int byte length (-1 for null)
+ * and its UTF-8 bytes. The length is written after the rest of the record, so a record cut off
+ * by a crash reads as length 0, which is where replay stops.
+ * When the journal has grown to twice its last compacted size (at least COMPACT_MIN) it is
+ * rewritten with one record per user, session and file, and the old file is replaced.
+ *
+ * Writes reach the operating system as soon as they return and the disk on flush() or every
+ * -Dstomp.journal.forceMillis (1000, 0 turns it off).
+ */
+public class JournalStorage implements Storage {
+
+	private static final byte USER = 'U';
+	private static final byte LOGIN = 'I';
+	private static final byte LOGOUT = 'O';
+	// A whole session, written by compaction
+	private static final byte SESSION = 'S';
+	private static final byte FILE = 'F';
+
+	private static final int GROW_BY = 1 << 20;
+	private static final long COMPACT_MIN = 4L << 20;
+
+	private final Path path;
+	// All guarded by this. Users in the order they registered, sessions and files by username,
+	// each user's in the order they happened
+	private final Map<String, String[]> users = new HashMap<>();
+	private final List<String[]> userList = new ArrayList<>();
+	private final TreeMap<String, List<String[]>> sessions = new TreeMap<>();
+	private final TreeMap<String, List<String[]>> files = new TreeMap<>();
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int end;
+	private long compactAt;
+
+	public JournalStorage(Path path) throws IOException {
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = Math.max(channel.size(), GROW_BY);
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Journal too large: " + path);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		replay();
+		compactAt = Math.max(COMPACT_MIN, 2L * end);
+
+		long forceMillis = Long.getLong("stomp.journal.forceMillis", 1000);
+		if (forceMillis > 0) {
+			Thread forcer = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(forceMillis);
+						flush();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "journal-force");
+			forcer.setDaemon(true);
+			forcer.start();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "journal-shutdown"));
+	}
+
+	@Override
+	public synchronized void registerUser(String username, String password, String time) {
+		if (users.containsKey(username)) return;
+		append(USER, username, password, time);
+		apply(USER, new String[]{username, password, time});
+	}
+
+	@Override
+	public synchronized void logLogin(String username, String time) {
+		append(LOGIN, username, time);
+		apply(LOGIN, new String[]{username, time});
+	}
+
+	@Override
+	public synchronized void logLogout(String username, String time) {
+		append(LOGOUT, username, time);
+		apply(LOGOUT, new String[]{username, time});
+	}
+
+	@Override
+	public synchronized void trackFileUploads(String username, Collection<FileUpload> uploads, String time) {
+		for (FileUpload upload : uploads) {
+			append(FILE, username, upload.filename, time, upload.gameChannel);
+			apply(FILE, new String[]{username, upload.filename, time, upload.gameChannel});
+		}
+	}
+
+	@Override
+	public synchronized void flush() {
+		map.force();
+	}
+
+	@Override
+	public boolean users(int pageSize, PageReader reader) throws IOException {
+		int next = 0;
+		while (true) {
+			List<String[]> page = new ArrayList<>(pageSize);
+			synchronized (this) {
+				while (next < userList.size() && page.size() < pageSize) {
+					String[] user = userList.get(next++);
+					page.add(new String[]{user[0], user[2]});
+				}
+			}
+			if (!page.isEmpty())
+				reader.page(page);
+			if (page.size() < pageSize)
+				return true;
+		}
+	}
+
+	@Override
+	public boolean loginHistory(int pageSize, PageReader reader) throws IOException {
+		return pages(sessions, pageSize, reader);
+	}
+
+	@Override
+	public boolean fileUploads(int pageSize, PageReader reader) throws IOException {
+		return pages(files, pageSize, reader);
+	}
+
+	/**
+	 * Read a table by username and latest first. The lock is held while a page is copied, not
+	 * while the reader has it; rows added meanwhile may be left out
+	 */
+	private boolean pages(TreeMap<String, List<String[]>> table, int pageSize, PageReader reader) throws IOException {
+		String user = null;
+		// Index of the next row of user, counting down
+		int next = -1;
+		while (true) {
+			List<String[]> page = new ArrayList<>(pageSize);
+			synchronized (this) {
+				Map.Entry<String, List<String[]>> entry = user == null ? table.firstEntry() : table.ceilingEntry(user);
+				while (entry != null && page.size() < pageSize) {
+					List<String[]> rows = entry.getValue();
+					if (!entry.getKey().equals(user)) {
+						user = entry.getKey();
+						next = rows.size() - 1;
+					}
+					while (next >= 0 && page.size() < pageSize)
+						page.add(rows.get(next--).clone());
+					if (next < 0)
+						entry = table.higherEntry(user);
+				}
+			}
+			if (!page.isEmpty())
+				reader.page(page);
+			if (page.size() < pageSize)
+				return true;
+		}
+	}
+
+	/**
+	 * Apply one record to the tables in memory
+	 */
+	private void apply(byte type, String[] fields) {
+		switch (type) {
+			case USER:
+				if (users.putIfAbsent(fields[0], fields) == null)
+					userList.add(fields);
+				break;
+			case LOGIN:
+				rowsOf(sessions, fields[0]).add(new String[]{fields[0], fields[1], null});
+				break;
+			case SESSION:
+				rowsOf(sessions, fields[0]).add(fields);
+				break;
+			case LOGOUT:
+				// The latest session of the user that has not ended yet
+				List<String[]> userSessions = sessions.get(fields[0]);
+				for (int i = userSessions == null ? -1 : userSessions.size() - 1; i >= 0; i--) {
+					String[] session = userSessions.get(i);
+					if (session[2] == null) {
+						session[2] = fields[1];
+						break;
+					}
+				}
+				break;
+			case FILE:
+				rowsOf(files, fields[0]).add(fields);
+				break;
+			default:
+				throw new IllegalStateException("Unknown journal record " + (char) type);
+		}
+	}
+
+	private static List<String[]> rowsOf(TreeMap<String, List<String[]>> table, String username) {
+		return table.computeIfAbsent(username, name -> new ArrayList<>());
+	}
+
+	/**
+	 * Read the records from the start of the journal up to the first one that is missing or cut off
+	 */
+	private void replay() {
+		end = 0;
+		while (end + 4 <= map.capacity()) {
+			int length = map.getInt(end);
+			if (length <= 0 || end + 4 + length > map.capacity())
+				break;
+			ByteBuffer record = map.duplicate();
+			record.position(end + 4).limit(end + 4 + length);
+			byte type = record.get();
+			List<String> fields = new ArrayList<>(4);
+			try {
+				while (record.hasRemaining()) {
+					int size = record.getInt();
+					if (size < 0) {
+						fields.add(null);
+					} else {
+						byte[] bytes = new byte[size];
+						record.get(bytes);
+						fields.add(new String(bytes, StandardCharsets.UTF_8));
+					}
+				}
+			} catch (BufferUnderflowException e) {
+				break;
+			}
+			apply(type, fields.toArray(new String[0]));
+			end += 4 + length;
+		}
+		// Whatever a crash left after the last whole record is overwritten from here
+		for (int i = end; i < map.capacity() && i < end + 4; i++)
+			map.put(i, (byte) 0);
+	}
+
+	private void append(byte type, String... fields) {
+		byte[][] bytes = new byte[fields.length][];
+		int length = 1;
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] != null)
+				bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+			length += 4 + (bytes[i] == null ? 0 : bytes[i].length);
+		}
+		try {
+			// 4 more for the zero length that marks the end
+			ensureRoom(4 + length + 4);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot grow the journal " + path, e);
+		}
+		ByteBuffer record = map.duplicate();
+		record.position(end + 4);
+		record.put(type);
+		for (byte[] field : bytes) {
+			if (field == null) {
+				record.putInt(-1);
+			} else {
+				record.putInt(field.length);
+				record.put(field);
+			}
+		}
+		record.putInt(0);
+		map.putInt(end, length);
+		end += 4 + length;
+	}
+
+	private void ensureRoom(int needed) throws IOException {
+		if (end + needed <= map.capacity())
+			return;
+		if (end >= compactAt) {
+			compact();
+			compactAt = Math.max(COMPACT_MIN, 2L * end);
+			if (end + needed <= map.capacity())
+				return;
+		}
+		long size = ((long) end + needed + GROW_BY - 1) / GROW_BY * GROW_BY;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Journal too large: " + path);
+		map.force();
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Rewrite the journal as it is now, next to it, and move it in place of the old one
+	 */
+	private void compact() throws IOException {
+		Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+		// Rebuild the journal from the tables into a fresh mapping of the new file
+		FileChannel oldChannel = channel;
+		MappedByteBuffer oldMap = map;
+		int oldEnd = end;
+		long oldCompactAt = compactAt;
+		channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(GROW_BY, (long) end / GROW_BY * GROW_BY + GROW_BY));
+			end = 0;
+			// Set compactAt so nothing compacts while the snapshot is written
+			compactAt = Long.MAX_VALUE;
+			for (String[] user : userList)
+				append(USER, user);
+			for (List<String[]> userSessions : sessions.values()) {
+				for (String[] session : userSessions)
+					append(SESSION, session);
+			}
+			for (List<String[]> userFiles : files.values()) {
+				for (String[] file : userFiles)
+					append(FILE, file);
+			}
+			map.force();
+			Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			channel = oldChannel;
+			map = oldMap;
+			end = oldEnd;
+			compactAt = oldCompactAt;
+			throw e;
+		}
+		// The old mapping stays valid until it is collected, it is no longer written
+		oldChannel.close();
+	}
+}
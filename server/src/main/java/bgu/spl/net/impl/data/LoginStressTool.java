@@ -0,0 +1,318 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Login storms against the user registry of Database, run by hand.
+ *
+ * stress: threads log in and out of a few users at once, with wrong passwords and every session
+ * ended twice. Fails (exit code 1) if two connections ever hold one user, if a login or logout is
+ * logged a wrong number of times, or if the user store does not give back every registered user.
+ *
+ * bench: login + logout throughput of UserRegistry against the monitor based registry it replaced
+ * (a global lock for registrations, each user's monitor for logins), both keeping new users in a
+ * user store and neither recording anything to storage. Reconnects of a fixed set of users, or new
+ * users only.
+ *
+ * Usage: LoginStressTool stress [threads] [logins per thread] [users]
+ *        LoginStressTool bench [threads] [users, 0 for new users only] [lock-free|monitors]
+ * Each registry is best benched in a JVM of its own, the one run second finds the JIT warmed up.
+ * Storage is left out (a storage that only counts), the user store writes to a temp directory.
+ */
+public class LoginStressTool {
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "stress";
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : ("bench".equals(mode) ? 16 : 32);
+		boolean ok;
+		if ("bench".equals(mode)) {
+			bench(threads, args.length > 2 ? Integer.parseInt(args[2]) : 1000, args.length > 3 ? args[3] : null);
+			ok = true;
+		} else {
+			ok = stress(threads, args.length > 2 ? Integer.parseInt(args[2]) : 20000, args.length > 3 ? Integer.parseInt(args[3]) : 50);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean stress(int threads, int logins, int users) throws Exception {
+		Path dir = Files.createTempDirectory("login-stress");
+		Path usersFile = dir.resolve("users");
+		CountingStorage storage = new CountingStorage();
+		Database database = new Database(storage, new UserStore(usersFile), 0);
+		Map<String, AtomicInteger> holders = new ConcurrentHashMap<>();
+		for (int u = 0; u < users; u++)
+			holders.put("u" + u, new AtomicInteger());
+		AtomicInteger connections = new AtomicInteger();
+		AtomicLong overlaps = new AtomicLong();
+		AtomicLong sessions = new AtomicLong();
+		AtomicLong registered = new AtomicLong();
+		// Half the users register during the storm, the others before it with their password
+		for (int u = 0; u < users; u += 2) {
+			int connectionId = connections.incrementAndGet();
+			database.login(connectionId, "u" + u, "pw");
+			database.logout(connectionId);
+			registered.incrementAndGet();
+			sessions.incrementAndGet();
+		}
+
+		run(threads, () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < logins; i++) {
+				int connectionId = connections.incrementAndGet();
+				String name = "u" + random.nextInt(users);
+				// Wrong passwords only for users registered before the storm
+				String password = name.charAt(name.length() - 1) % 2 == 0 && random.nextInt(10) == 0 ? "wrong" : "pw";
+				LoginStatus status = database.login(connectionId, name, password);
+				if (status != LoginStatus.ADDED_NEW_USER && status != LoginStatus.LOGGED_IN_SUCCESSFULLY)
+					continue;
+				if (status == LoginStatus.ADDED_NEW_USER)
+					registered.incrementAndGet();
+				sessions.incrementAndGet();
+				AtomicInteger holding = holders.get(name);
+				if (holding.incrementAndGet() != 1)
+					overlaps.incrementAndGet();
+				Thread.yield();
+				holding.decrementAndGet();
+				database.logout(connectionId);
+				database.logout(connectionId);
+			}
+		});
+
+		database.flushUsers();
+		Map<String, User> stored = new UserStore(usersFile).load();
+		boolean storeOk = stored.size() == registered.get();
+		for (User user : stored.values())
+			storeOk &= user.password.equals("pw");
+
+		System.out.printf("threads=%d logins=%d users=%d: sessions=%d overlapping=%d%n",
+				threads, threads * (long) logins, users, sessions.get(), overlaps.get());
+		System.out.printf("storage: registered=%d logins=%d logouts=%d, user store: %d users%n",
+				storage.registrations.get(), storage.logins.get(), storage.logouts.get(), stored.size());
+		boolean ok = overlaps.get() == 0
+				&& storage.registrations.get() == registered.get()
+				&& storage.logins.get() == sessions.get()
+				&& storage.logouts.get() == sessions.get()
+				&& storeOk;
+		System.out.println(ok ? "OK" : "FAILED");
+		return ok;
+	}
+
+	private static void bench(int threads, int users, String only) throws Exception {
+		int logins = 20000;
+		String[] names = only != null ? new String[] {only} : new String[] {"lock-free", "monitors"};
+		for (String name : names) {
+			double[] rates = new double[8];
+			for (int round = 0; round < rates.length; round++) {
+				Path dir = Files.createTempDirectory("login-bench");
+				Registry registry = name.equals("lock-free") ? new LockFreeRegistry(dir) : new MonitorRegistry(dir);
+				long start = System.nanoTime();
+				AtomicInteger connections = new AtomicInteger();
+				run(threads, () -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					for (int i = 0; i < logins; i++) {
+						int connectionId = connections.incrementAndGet();
+						String user = users > 0 ? "u" + random.nextInt(users) : "n" + connectionId;
+						LoginStatus status = registry.login(connectionId, user, "pw");
+						if (status == LoginStatus.ADDED_NEW_USER || status == LoginStatus.LOGGED_IN_SUCCESSFULLY)
+							registry.logout(connectionId);
+					}
+				});
+				rates[round] = threads * (double) logins / ((System.nanoTime() - start) / 1e9);
+				System.gc();
+			}
+			// The first rounds warm up
+			double[] measured = Arrays.copyOfRange(rates, 3, rates.length);
+			Arrays.sort(measured);
+			System.out.printf("%s: threads=%d %s: median %.0f logins/s%n", name, threads,
+					users > 0 ? "reconnects of " + users + " users" : "new users", measured[measured.length / 2]);
+		}
+	}
+
+	private static void run(int threads, Runnable body) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+					body.run();
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			});
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+		if (failure[0] != null)
+			throw new IllegalStateException(failure[0]);
+	}
+
+	private interface Registry {
+		LoginStatus login(int connectionId, String username, String password);
+
+		void logout(int connectionId);
+	}
+
+	private static class LockFreeRegistry implements Registry {
+		private final UserRegistry users;
+
+		LockFreeRegistry(Path dir) throws IOException {
+			UserStore userStore = new UserStore(dir.resolve("users"));
+			users = new UserRegistry(userStore.load(), userStore);
+		}
+
+		@Override
+		public LoginStatus login(int connectionId, String username, String password) {
+			return users.login(connectionId, username, password);
+		}
+
+		@Override
+		public void logout(int connectionId) {
+			User user = users.disconnect(connectionId);
+			if (user != null)
+				user.logout(connectionId);
+		}
+	}
+
+	/**
+	 * The registry Database had before logins went lock free: registrations under one lock, each
+	 * appending to the user store in the caller, logins under the user's monitor
+	 */
+	private static class MonitorRegistry implements Registry {
+		private static class LockedUser {
+			final String name;
+			final String password;
+			int connectionId;
+			boolean loggedIn;
+
+			LockedUser(String name, String password) {
+				this.name = name;
+				this.password = password;
+			}
+		}
+
+		private final ConcurrentHashMap<String, LockedUser> userMap = new ConcurrentHashMap<>(UserStore.MIN_USERS);
+		private final ConcurrentHashMap<Integer, LockedUser> connectionsIdMap = new ConcurrentHashMap<>();
+		private final FileChannel tail;
+
+		MonitorRegistry(Path dir) throws IOException {
+			tail = FileChannel.open(dir.resolve("users.tail"), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+
+		@Override
+		public LoginStatus login(int connectionId, String username, String password) {
+			if (connectionsIdMap.containsKey(connectionId))
+				return LoginStatus.CLIENT_ALREADY_CONNECTED;
+			synchronized (userMap) {
+				if (!userMap.containsKey(username)) {
+					LockedUser user = new LockedUser(username, password);
+					user.loggedIn = true;
+					user.connectionId = connectionId;
+					userMap.put(username, user);
+					connectionsIdMap.put(connectionId, user);
+					append(username, password);
+					return LoginStatus.ADDED_NEW_USER;
+				}
+			}
+			LockedUser user = userMap.get(username);
+			synchronized (user) {
+				if (user.loggedIn)
+					return LoginStatus.ALREADY_LOGGED_IN;
+				if (!user.password.equals(password))
+					return LoginStatus.WRONG_PASSWORD;
+				user.loggedIn = true;
+				user.connectionId = connectionId;
+				connectionsIdMap.put(connectionId, user);
+				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+			}
+		}
+
+		@Override
+		public void logout(int connectionId) {
+			LockedUser user = connectionsIdMap.remove(connectionId);
+			if (user != null) {
+				synchronized (user) {
+					user.loggedIn = false;
+				}
+			}
+		}
+
+		private void append(String name, String password) {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(12 + nameBytes.length + passwordBytes.length);
+			record.putInt(8 + nameBytes.length + passwordBytes.length).putInt(nameBytes.length).put(nameBytes)
+					.putInt(passwordBytes.length).put(passwordBytes).flip();
+			try {
+				while (record.hasRemaining())
+					tail.write(record);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Storage that keeps nothing, it counts what it was asked to record
+	 */
+	private static class CountingStorage implements Storage {
+		final AtomicLong registrations = new AtomicLong();
+		final AtomicLong logins = new AtomicLong();
+		final AtomicLong logouts = new AtomicLong();
+
+		@Override
+		public void registerUser(String username, String password, String time) {
+			registrations.incrementAndGet();
+		}
+
+		@Override
+		public void logLogin(String username, String time) {
+			logins.incrementAndGet();
+		}
+
+		@Override
+		public void logLogout(String username, String time) {
+			logouts.incrementAndGet();
+		}
+
+		@Override
+		public void trackFileUploads(String username, Collection<FileUpload> uploads, String time) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public boolean users(int pageSize, PageReader reader) {
+			return true;
+		}
+
+		@Override
+		public boolean loginHistory(int pageSize, PageReader reader) {
+			return true;
+		}
+
+		@Override
+		public boolean fileUploads(int pageSize, PageReader reader) {
+			return true;
+		}
+	}
+}
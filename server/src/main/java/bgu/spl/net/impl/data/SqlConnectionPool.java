@@ -0,0 +1,478 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few long-lived connections to the SQL server, shared by all requests.
+ *
+ * A connection starts with the null terminated hello "PROTOCOL 2". A server that answers "OK 2"
+ * speaks the framed protocol on it from then on, every frame is a 4 byte big-endian length
+ * followed by that many bytes:
+ *   request:   int id, byte kind ('R' a query, 'W' statements run in one transaction),
+ *              short count, and count times: string sql, short n, n parameters
+ *   parameter: 'S' string, 'L' long, or 'N' null
+ *   string:    int length, UTF-8 bytes
+ *   response:  int id, the UTF-8 text the old protocol would have answered
+ * Any number of requests may be in flight on a connection, responses are matched by id.
+ * A server that answers the hello with anything else gets the old protocol on that connection:
+ * null terminated text with the parameters inlined, one request at a time.
+ *
+ * The requests in flight are bounded, a request starts at once while there is room and waits
+ * up to the borrow timeout otherwise. A broken connection is replaced by a new one.
+ *
+ * With a unix socket path the connections go through that socket file instead of TCP, for a
+ * server on the same host; those always use the framed protocol.
+ */
+public class SqlConnectionPool {
+
+	static final String HELLO = "PROTOCOL 2";
+	static final String HELLO_OK = "OK 2";
+
+	private static final byte QUERY = 'R';
+	private static final byte UPDATE = 'W';
+
+	private final String host;
+	private final int port;
+	private final String unixSocketPath;
+	private final long borrowTimeoutMillis;
+	private final long idleCheckMillis;
+	private final int socketTimeoutMillis;
+	private final boolean framed;
+
+	// One permit per request that may be in flight
+	private final Semaphore permits;
+	// Requests are spread over the connections round robin, a slot is (re)connected holding its lock
+	private final Connection[] connections;
+	private final Object[] slotLocks;
+	private final AtomicInteger nextSlot = new AtomicInteger();
+
+	/**
+	 * @param connectionCount connections kept open
+	 * @param maxInFlight most requests sent and not answered yet, over all connections
+	 * @param borrowTimeoutMillis how long a request waits for room
+	 * @param idleCheckMillis an old protocol connection idle for longer is checked before it is used
+	 * @param socketTimeoutMillis connect timeout, and how long a request waits for its response
+	 * @param framed false to skip the hello and always use the old protocol
+	 * @param unixSocketPath socket file of a server on the same host, null for TCP
+	 */
+	public SqlConnectionPool(String host, int port, int connectionCount, int maxInFlight, long borrowTimeoutMillis,
+							 long idleCheckMillis, int socketTimeoutMillis, boolean framed, String unixSocketPath) {
+		this.host = host;
+		this.port = port;
+		if (unixSocketPath != null && !UnixSocketTransport.isSupported()) {
+			System.out.println("Unix domain sockets need Java 16 or later, using TCP for the SQL server");
+			unixSocketPath = null;
+		}
+		this.unixSocketPath = unixSocketPath;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.idleCheckMillis = idleCheckMillis;
+		this.socketTimeoutMillis = socketTimeoutMillis;
+		this.framed = framed;
+		this.permits = new Semaphore(maxInFlight);
+		this.connections = new Connection[Math.max(1, connectionCount)];
+		this.slotLocks = new Object[connections.length];
+		for (int i = 0; i < slotLocks.length; i++)
+			slotLocks[i] = new Object();
+	}
+
+	/**
+	 * Run a query and wait for its result
+	 * @return the response of the SQL server
+	 * @throws IOException if there was no room in time or the request failed
+	 */
+	public String query(SqlStatement statement) throws IOException {
+		return execute(QUERY, Collections.singletonList(statement));
+	}
+
+	/**
+	 * Run INSERT / UPDATE statements in a single transaction and wait for it to end
+	 * @return the response of the SQL server
+	 * @throws IOException if there was no room in time or the request failed
+	 */
+	public String update(List<SqlStatement> statements) throws IOException {
+		return execute(UPDATE, statements);
+	}
+
+	/**
+	 * Close all connections, requests in flight fail
+	 */
+	public void close() {
+		for (int i = 0; i < connections.length; i++) {
+			synchronized (slotLocks[i]) {
+				if (connections[i] != null)
+					connections[i].close();
+				connections[i] = null;
+			}
+		}
+	}
+
+	private String execute(byte kind, List<SqlStatement> statements) throws IOException {
+		acquire();
+		try {
+			int slot = Math.floorMod(nextSlot.getAndIncrement(), connections.length);
+			Connection conn = connection(slot, null);
+			try {
+				return conn.request(kind, statements);
+			} catch (StaleConnectionException e) {
+				// Nothing reached the server, the connection was closed before (e.g. while idle), try once on a new one
+				return connection(slot, conn).request(kind, statements);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void acquire() throws IOException {
+		if (permits.tryAcquire())
+			return;
+		try {
+			if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+				throw new IOException("No free SQL connection after " + borrowTimeoutMillis + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a SQL connection");
+		}
+	}
+
+	/**
+	 * The connection of a slot, a new one if there is none, it is broken, or it is the stale one
+	 */
+	private Connection connection(int slot, Connection stale) throws IOException {
+		synchronized (slotLocks[slot]) {
+			Connection conn = connections[slot];
+			if (conn != null && conn != stale && !conn.isBroken())
+				return conn;
+			if (conn != null)
+				conn.close();
+			connections[slot] = null;
+			conn = open();
+			connections[slot] = conn;
+			return conn;
+		}
+	}
+
+	private Connection open() throws IOException {
+		if (unixSocketPath != null)
+			return openUnix();
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), socketTimeoutMillis);
+			socket.setSoTimeout(socketTimeoutMillis);
+			socket.setTcpNoDelay(true);
+			if (!framed)
+				return new LegacyConnection(socket);
+
+			if (hello(socket.getInputStream(), socket.getOutputStream())) {
+				// The reader waits for responses as long as the connection is open, requests time out by themselves
+				socket.setSoTimeout(0);
+				return new FramedConnection(socket.getInputStream(), socket.getOutputStream(), socket);
+			}
+			System.out.println("SQL server does not speak " + HELLO + ", using null terminated text");
+			return new LegacyConnection(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private Connection openUnix() throws IOException {
+		SocketChannel channel = UnixSocketTransport.connect(unixSocketPath);
+		try {
+			InputStream in = UnixSocketTransport.input(channel);
+			OutputStream out = UnixSocketTransport.output(channel);
+			if (!hello(in, out))
+				throw new IOException("SQL server at " + unixSocketPath + " does not speak " + HELLO);
+			return new FramedConnection(in, out, channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if the server answered the hello, the framed protocol is used from now on
+	 */
+	private static boolean hello(InputStream in, OutputStream out) throws IOException {
+		out.write((HELLO + '\0').getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		// Byte by byte, nothing may be read past the answer
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) > 0)
+			answer.write(b);
+		if (b == -1)
+			throw new EOFException("SQL server closed the connection");
+		return HELLO_OK.equals(new String(answer.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The request failed before anything of it reached the server, it may be sent again
+	 */
+	private static class StaleConnectionException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		StaleConnectionException(String message) {
+			super(message);
+		}
+	}
+
+	private abstract static class Connection {
+		private final Closeable transport;
+
+		Connection(Closeable transport) {
+			this.transport = transport;
+		}
+
+		abstract String request(byte kind, List<SqlStatement> statements) throws IOException;
+
+		abstract boolean isBroken();
+
+		void close() {
+			try {
+				transport.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Length prefixed frames, many requests in flight, a reader thread hands out the responses
+	 */
+	private class FramedConnection extends Connection {
+		private final Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+		private final AtomicInteger ids = new AtomicInteger();
+		// Guarded by out, a request is encoded into payload and written as one frame
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		private final DataOutputStream payloadOut = new DataOutputStream(payload);
+		private volatile boolean broken = false;
+
+		FramedConnection(InputStream input, OutputStream output, Closeable transport) {
+			super(transport);
+			out = new DataOutputStream(new BufferedOutputStream(output));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+			Thread reader = new Thread(() -> readResponses(in), "sql-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		@Override
+		String request(byte kind, List<SqlStatement> statements) throws IOException {
+			if (broken)
+				throw new StaleConnectionException("SQL connection was closed");
+			int id = ids.incrementAndGet();
+			CompletableFuture<String> response = new CompletableFuture<>();
+			pending.put(id, response);
+			try {
+				synchronized (out) {
+					payload.reset();
+					encode(id, kind, statements);
+					out.writeInt(payload.size());
+					payload.writeTo(out);
+					out.flush();
+				}
+			} catch (IOException e) {
+				pending.remove(id);
+				fail(e);
+				throw new StaleConnectionException(e.getMessage());
+			}
+
+			try {
+				return response.get(socketTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				pending.remove(id);
+				throw new SocketTimeoutException("No SQL response after " + socketTimeoutMillis + "ms");
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				pending.remove(id);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a SQL response");
+			}
+		}
+
+		@Override
+		boolean isBroken() {
+			return broken;
+		}
+
+		@Override
+		void close() {
+			fail(new IOException("SQL connection was closed"));
+		}
+
+		private void encode(int id, byte kind, List<SqlStatement> statements) throws IOException {
+			payloadOut.writeInt(id);
+			payloadOut.writeByte(kind);
+			payloadOut.writeShort(statements.size());
+			for (SqlStatement statement : statements) {
+				writeString(statement.sql);
+				payloadOut.writeShort(statement.params.length);
+				for (Object param : statement.params) {
+					if (param == null) {
+						payloadOut.writeByte('N');
+					} else if (param instanceof String) {
+						payloadOut.writeByte('S');
+						writeString((String) param);
+					} else {
+						payloadOut.writeByte('L');
+						payloadOut.writeLong(((Number) param).longValue());
+					}
+				}
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			payloadOut.writeInt(bytes.length);
+			payloadOut.write(bytes);
+		}
+
+		private void readResponses(DataInputStream in) {
+			try {
+				while (true) {
+					int length = in.readInt();
+					int id = in.readInt();
+					byte[] text = new byte[length - 4];
+					in.readFully(text);
+					CompletableFuture<String> response = pending.remove(id);
+					if (response != null)
+						response.complete(new String(text, StandardCharsets.UTF_8));
+				}
+			} catch (IOException e) {
+				fail(broken ? e : new EOFException("SQL server closed the connection"));
+			}
+		}
+
+		private void fail(IOException cause) {
+			broken = true;
+			super.close();
+			for (Iterator<CompletableFuture<String>> it = pending.values().iterator(); it.hasNext(); ) {
+				CompletableFuture<String> response = it.next();
+				it.remove();
+				response.completeExceptionally(cause);
+			}
+		}
+	}
+
+	/**
+	 * The old protocol: null terminated text, one request at a time
+	 */
+	private class LegacyConnection extends Connection {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final byte[] readBuffer = new byte[8192];
+		private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		private long lastUsed = System.currentTimeMillis();
+		private volatile boolean broken = false;
+
+		LegacyConnection(Socket socket) throws IOException {
+			super(socket);
+			this.socket = socket;
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+		}
+
+		@Override
+		synchronized String request(byte kind, List<SqlStatement> statements) throws IOException {
+			if (System.currentTimeMillis() - lastUsed >= idleCheckMillis && !isAlive()) {
+				broken = true;
+				throw new StaleConnectionException("SQL connection was closed while idle");
+			}
+			try {
+				return send(SqlStatement.toScript(statements));
+			} catch (IOException e) {
+				broken = true;
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		boolean isBroken() {
+			return broken;
+		}
+
+		/**
+		 * Send the null terminated text and read the null terminated response in bulk
+		 */
+		private String send(String sql) throws IOException {
+			byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+			byte[] frame = new byte[bytes.length + 1];
+			System.arraycopy(bytes, 0, frame, 0, bytes.length);
+			out.write(frame);
+			out.flush();
+
+			response.reset();
+			while (true) {
+				int n = in.read(readBuffer);
+				if (n == -1)
+					throw new EOFException("SQL server closed the connection");
+				int end = indexOfNull(readBuffer, n);
+				if (end != -1) {
+					response.write(readBuffer, 0, end);
+					break;
+				}
+				response.write(readBuffer, 0, n);
+			}
+			lastUsed = System.currentTimeMillis();
+			return new String(response.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * A closed connection reads end of stream at once, a live one has nothing to read
+		 */
+		private boolean isAlive() {
+			try {
+				socket.setSoTimeout(1);
+				try {
+					// End of stream, or bytes nobody asked for and the connection is out of step
+					in.read();
+					return false;
+				} catch (SocketTimeoutException e) {
+					return true;
+				} finally {
+					socket.setSoTimeout(socketTimeoutMillis);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+
+	private static int indexOfNull(byte[] buffer, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] == 0)
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,78 @@
+package bgu.spl.net.impl.data;
+
+import java.util.List;
+
+/**
+ * An SQL statement with '?' placeholders and the values bound to them.
+ * The values are sent apart from the statement text, so they need no escaping; only the
+ * null terminated text protocol inlines them as literals.
+ */
+public class SqlStatement {
+
+	final String sql;
+	// String, Integer, Long or null
+	final Object[] params;
+
+	public SqlStatement(String sql, Object... params) {
+		for (Object param : params) {
+			if (param != null && !(param instanceof String) && !(param instanceof Integer) && !(param instanceof Long))
+				throw new IllegalArgumentException("Unsupported SQL parameter type " + param.getClass().getName());
+		}
+		this.sql = sql;
+		this.params = params;
+	}
+
+	/**
+	 * The statement with its values inlined as SQL literals
+	 */
+	public String toSql() {
+		if (params.length == 0)
+			return sql;
+		StringBuilder out = new StringBuilder(sql.length() + 16 * params.length);
+		boolean quoted = false;
+		int next = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (c == '\'')
+				quoted = !quoted;
+			if (c == '?' && !quoted) {
+				if (next == params.length)
+					throw new IllegalStateException("More placeholders than parameters in " + sql);
+				appendLiteral(out, params[next++]);
+			} else {
+				out.append(c);
+			}
+		}
+		if (next != params.length)
+			throw new IllegalStateException("More parameters than placeholders in " + sql);
+		return out.toString();
+	}
+
+	/**
+	 * Several statements as one script run in a single transaction
+	 */
+	public static String toScript(List<SqlStatement> statements) {
+		if (statements.size() == 1)
+			return statements.get(0).toSql();
+		StringBuilder script = new StringBuilder("BEGIN TRANSACTION;\n");
+		for (SqlStatement statement : statements)
+			script.append(statement.toSql()).append(";\n");
+		return script.append("COMMIT;").toString();
+	}
+
+	@Override
+	public String toString() {
+		return toSql();
+	}
+
+	private static void appendLiteral(StringBuilder out, Object param) {
+		if (param == null) {
+			out.append("NULL");
+		} else if (param instanceof String) {
+			// Escape SQL special characters to prevent SQL injection
+			out.append('\'').append(((String) param).replace("'", "''")).append('\'');
+		} else {
+			out.append(param);
+		}
+	}
+}
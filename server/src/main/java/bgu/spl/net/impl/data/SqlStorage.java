@@ -0,0 +1,277 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Storage in the tables of the SQL server (data/sql_server.py).
+ * Writes go through the audit log, queries wait for it first.
+ */
+public class SqlStorage implements Storage {
+
+	private final SqlConnectionPool sqlPool;
+	private final AuditLog auditLog;
+
+	public SqlStorage(String sqlHost, int sqlPort) {
+		// Connections to the SQL server are kept open and shared, configured with
+		// -Dstomp.sql.poolSize (connections), -Dstomp.sql.maxInFlight, -Dstomp.sql.borrowTimeoutMillis,
+		// -Dstomp.sql.idleCheckMillis, -Dstomp.sql.timeoutMillis, -Dstomp.sql.protocol=2|1
+		// (1 = always the old null terminated text) and -Dstomp.sql.socket=<path> (a unix socket
+		// instead of TCP, for an SQL server on the same host)
+		this.sqlPool = new SqlConnectionPool(sqlHost, sqlPort,
+				Integer.getInteger("stomp.sql.poolSize", 2),
+				Integer.getInteger("stomp.sql.maxInFlight", 64),
+				Long.getLong("stomp.sql.borrowTimeoutMillis", 2000),
+				Long.getLong("stomp.sql.idleCheckMillis", 5000),
+				Integer.getInteger("stomp.sql.timeoutMillis", 5000),
+				Integer.getInteger("stomp.sql.protocol", 2) >= 2,
+				System.getProperty("stomp.sql.socket"));
+		// Logins, logouts and file uploads are written behind by a background writer, configured with
+		// -Dstomp.audit.mode=off|async|durable, -Dstomp.audit.overflow=block|drop,
+		// -Dstomp.audit.queueSize, -Dstomp.audit.batchSize and -Dstomp.audit.flushMillis
+		this.auditLog = new AuditLog(this::executeUpdate,
+				AuditLog.Mode.valueOf(System.getProperty("stomp.audit.mode", "async").toUpperCase()),
+				AuditLog.Overflow.valueOf(System.getProperty("stomp.audit.overflow", "block").toUpperCase()),
+				Integer.getInteger("stomp.audit.queueSize", 10000),
+				Integer.getInteger("stomp.audit.batchSize", 100),
+				Long.getLong("stomp.audit.flushMillis", 10));
+	}
+
+	@Override
+	public void registerUser(String username, String password, String time) {
+		auditLog.submit(new SqlStatement(
+			"INSERT OR IGNORE INTO users (username, password, registration_date) VALUES (?, ?, ?)",
+			username, password, time
+		));
+	}
+
+	@Override
+	public void logLogin(String username, String time) {
+		auditLog.submit(new SqlStatement(
+			"INSERT INTO login_history (username, login_time) VALUES (?, ?)",
+			username, time
+		));
+	}
+
+	@Override
+	public void logLogout(String username, String time) {
+		auditLog.submit(new SqlStatement(
+			"UPDATE login_history SET logout_time=? " +
+			"WHERE username=? AND logout_time IS NULL " +
+			"ORDER BY login_time DESC LIMIT 1",
+			time, username
+		));
+	}
+
+	/**
+	 * Track several file uploads of the same user with a single SQL statement
+	 */
+	@Override
+	public void trackFileUploads(String username, Collection<FileUpload> uploads, String time) {
+		if (uploads.isEmpty()) return;
+		StringBuilder sql = new StringBuilder(
+			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) VALUES ");
+		List<Object> params = new ArrayList<>(4 * uploads.size());
+		boolean first = true;
+		for (FileUpload upload : uploads) {
+			if (!first) sql.append(", ");
+			first = false;
+			sql.append("(?, ?, ?, ?)");
+			Collections.addAll(params, username, upload.filename, time, upload.gameChannel);
+		}
+		auditLog.submit(new SqlStatement(sql.toString(), params.toArray()));
+	}
+
+	@Override
+	public void flush() {
+		auditLog.flush(0);
+	}
+
+	@Override
+	public boolean users(int pageSize, PageReader reader) throws IOException {
+		String[] last = null;
+		while (true) {
+			List<String[]> page = last == null
+				? rows(new SqlStatement(
+					"SELECT username, registration_date FROM users " +
+					"ORDER BY registration_date, username LIMIT ?", pageSize), 2)
+				: rows(new SqlStatement(
+					"SELECT username, registration_date FROM users " +
+					"WHERE (registration_date, username) > (?, ?) " +
+					"ORDER BY registration_date, username LIMIT ?",
+					last[1], last[0], pageSize), 2);
+			if (page == null)
+				return false;
+			if (!page.isEmpty())
+				reader.page(page);
+			if (page.size() < pageSize)
+				return true;
+			last = page.get(page.size() - 1);
+		}
+	}
+
+	@Override
+	public boolean loginHistory(int pageSize, PageReader reader) throws IOException {
+		return pages(
+			"SELECT username, login_time, logout_time, id FROM login_history",
+			"login_time", 1, pageSize, 3, reader);
+	}
+
+	@Override
+	public boolean fileUploads(int pageSize, PageReader reader) throws IOException {
+		return pages(
+			"SELECT username, filename, upload_time, game_channel, id FROM file_tracking",
+			"upload_time", 2, pageSize, 4, reader);
+	}
+
+	/**
+	 * Read a table by username and latest first, a page at a time. Each page goes on from the last
+	 * row of the one before: the rest of that user's rows, then the users after it. Both are
+	 * ranges of the (username, time) index, so no page rereads the rows before it.
+	 * @param select Query of the columns to read, then the id
+	 * @param time Time column
+	 * @param timeField Index of the time column in a row
+	 */
+	private boolean pages(String select, String time, int timeField, int pageSize, int columns, PageReader reader) throws IOException {
+		String byUser = " ORDER BY username, " + time + " DESC, id DESC LIMIT ?";
+		String[] last = null;
+		while (true) {
+			List<String[]> page;
+			if (last == null) {
+				page = rows(new SqlStatement(select + byUser, pageSize), columns + 1);
+			} else {
+				page = rows(new SqlStatement(select +
+					" WHERE username = ? AND (" + time + ", id) < (?, ?) ORDER BY " + time + " DESC, id DESC LIMIT ?",
+					last[0], last[timeField], Long.valueOf(last[columns]), pageSize), columns + 1);
+				if (page != null && page.size() < pageSize) {
+					List<String[]> next = rows(new SqlStatement(select + " WHERE username > ?" + byUser,
+						last[0], pageSize - page.size()), columns + 1);
+					if (next == null)
+						page = null;
+					else
+						page.addAll(next);
+				}
+			}
+			if (page == null)
+				return false;
+			if (page.isEmpty())
+				return true;
+			last = page.get(page.size() - 1);
+			List<String[]> rows = new ArrayList<>(page.size());
+			for (String[] row : page)
+				rows.add(Arrays.copyOf(row, columns));
+			reader.page(rows);
+			if (page.size() < pageSize)
+				return true;
+		}
+	}
+
+	/**
+	 * Run a query and read its "SUCCESS|(row)|(row)" result, each row as Python prints a tuple
+	 * @return the rows, None as null, or null if the query failed
+	 */
+	private List<String[]> rows(SqlStatement query, int columns) {
+		String result = executeSQL(query);
+		if (!result.startsWith("SUCCESS"))
+			return null;
+		List<String[]> rows = new ArrayList<>();
+		int[] at = {"SUCCESS".length()};
+		while (at[0] < result.length()) {
+			// "|(" starts a row
+			at[0] += 2;
+			String[] row = new String[columns];
+			int field = 0;
+			while (at[0] < result.length() && result.charAt(at[0]) != ')') {
+				String value = parseValue(result, at);
+				if (field < columns)
+					row[field++] = value;
+				// ", " or "," before the closing ")" of a single field tuple
+				while (at[0] < result.length() && (result.charAt(at[0]) == ',' || result.charAt(at[0]) == ' '))
+					at[0]++;
+			}
+			at[0]++;
+			if (field == columns)
+				rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Parse one value of a printed tuple at at[0], a quoted string, a number or None
+	 */
+	private static String parseValue(String text, int[] at) {
+		int i = at[0];
+		char quote = text.charAt(i);
+		if (quote != '\'' && quote != '"') {
+			int end = i;
+			while (end < text.length() && text.charAt(end) != ',' && text.charAt(end) != ')')
+				end++;
+			at[0] = end;
+			String value = text.substring(i, end);
+			return value.equals("None") ? null : value;
+		}
+		StringBuilder value = new StringBuilder();
+		i++;
+		while (i < text.length() && text.charAt(i) != quote) {
+			char c = text.charAt(i++);
+			if (c != '\\' || i == text.length()) {
+				value.append(c);
+				continue;
+			}
+			char escaped = text.charAt(i++);
+			switch (escaped) {
+				case 'n': value.append('\n'); break;
+				case 'r': value.append('\r'); break;
+				case 't': value.append('\t'); break;
+				case 'x':
+					value.append((char) Integer.parseInt(text.substring(i, i + 2), 16));
+					i += 2;
+					break;
+				case 'u':
+					value.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+					i += 4;
+					break;
+				case 'U':
+					value.appendCodePoint(Integer.parseInt(text.substring(i, i + 8), 16));
+					i += 8;
+					break;
+				default:
+					value.append(escaped);
+			}
+		}
+		at[0] = i + 1;
+		return value.toString();
+	}
+
+	/**
+	 * Execute SQL query and return result
+	 * @param query SQL query with its parameters
+	 * @return Result string from SQL server
+	 */
+	private String executeSQL(SqlStatement query) {
+		try {
+			return sqlPool.query(query);
+		} catch (Exception e) {
+			System.err.println("SQL Error: " + e.getMessage());
+			return "ERROR:" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Execute INSERT / UPDATE statements in a single transaction
+	 * @param statements SQL statements with their parameters
+	 * @return Result string from SQL server
+	 */
+	private String executeUpdate(List<SqlStatement> statements) {
+		try {
+			return sqlPool.update(statements);
+		} catch (Exception e) {
+			System.err.println("SQL Error: " + e.getMessage());
+			return "ERROR:" + e.getMessage();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where the server keeps user registrations, the login history and the reported files.
+ * Writes may be applied in the background, flush() waits until they are.
+ * Times are "yyyy-MM-dd HH:mm:ss" UTC strings, taken when the event happened.
+ * Tables are read a page at a time, so a report never holds a whole table.
+ */
+public interface Storage {
+
+	/**
+	 * Record a new user, a user that is already stored is kept as it is
+	 */
+	void registerUser(String username, String password, String time);
+
+	void logLogin(String username, String time);
+
+	/**
+	 * End the latest session of the user that has not ended yet
+	 */
+	void logLogout(String username, String time);
+
+	void trackFileUploads(String username, Collection<FileUpload> uploads, String time);
+
+	/**
+	 * Wait until every write made so far is stored
+	 */
+	void flush();
+
+	/**
+	 * Receives the rows of a table a page at a time
+	 */
+	interface PageReader {
+		void page(List<String[]> rows) throws IOException;
+	}
+
+	/**
+	 * Read {username, registration time} by registration time, pageSize rows at a time
+	 * @return false if the storage cannot be read
+	 */
+	boolean users(int pageSize, PageReader reader) throws IOException;
+
+	/**
+	 * Read {username, login time, logout time or null} by username and latest login first,
+	 * pageSize rows at a time
+	 * @return false if the storage cannot be read
+	 */
+	boolean loginHistory(int pageSize, PageReader reader) throws IOException;
+
+	/**
+	 * Read {username, filename, upload time, game channel} by username and latest upload first,
+	 * pageSize rows at a time
+	 * @return false if the storage cannot be read
+	 */
+	boolean fileUploads(int pageSize, PageReader reader) throws IOException;
+}
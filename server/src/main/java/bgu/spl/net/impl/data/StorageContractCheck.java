@@ -0,0 +1,155 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the same Storage operations against SqlStorage and JournalStorage and checks that both
+ * read back what the Storage contract says, run by hand.
+ *
+ * Registrations (a second registration of a user keeps the first), logins and logouts (a logout
+ * ends the user's latest open session, a logout with none open changes nothing), file uploads
+ * (several at once, none at all, names that need escaping) and the three paged readers, each at
+ * several page sizes. The journal is also checked again after it is replayed from its file.
+ * Exit code 1 if any storage differs from the expected rows.
+ *
+ * Usage: StorageContractCheck [sql|journal|both] [SQL host] [SQL port]
+ * The SQL storage needs data/sql_server.py running; the rows of the check are told apart from
+ * what the database already holds by a prefix of their own, so it can run on a used database.
+ */
+public class StorageContractCheck {
+
+	private static final int[] PAGE_SIZES = {1, 2, 3, 1000};
+
+	private final String prefix = "contract-" + Long.toString(System.nanoTime(), 36) + "-";
+	private final String a = prefix + "a";
+	private final String b = prefix + "b";
+	// Needs escaping in SQL and in printed Python tuples
+	private final String c = prefix + "c'\u00fc";
+	private final List<String> failures = new ArrayList<>();
+
+	public static void main(String[] args) throws Exception {
+		String which = args.length > 0 ? args[0] : "both";
+		String host = args.length > 1 ? args[1] : "127.0.0.1";
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 7778;
+		StorageContractCheck check = new StorageContractCheck();
+
+		if (!"sql".equals(which)) {
+			Path journal = Files.createTempDirectory("storage-contract").resolve("journal");
+			check.run("journal", new JournalStorage(journal));
+			check.check("journal (replayed)", new JournalStorage(journal));
+		}
+		if (!"journal".equals(which))
+			check.run("sql", new SqlStorage(host, port));
+
+		for (String failure : check.failures)
+			System.out.println(failure);
+		System.out.println(check.failures.isEmpty() ? "OK" : "FAILED");
+		System.exit(check.failures.isEmpty() ? 0 : 1);
+	}
+
+	private void run(String name, Storage storage) throws IOException {
+		storage.registerUser(a, "pa", time(1));
+		storage.registerUser(b, "pb", time(2));
+		storage.registerUser(c, "pc", time(3));
+		// Already registered, kept as it was
+		storage.registerUser(a, "other", time(4));
+
+		// Two sessions of a at once, each logout ends the latest one still open
+		storage.logLogin(a, time(1));
+		storage.logLogin(a, time(3));
+		storage.logLogout(a, time(4));
+		storage.logLogout(a, time(5));
+		storage.logLogin(b, time(2));
+		storage.logLogout(b, time(6));
+		// Nothing open any more
+		storage.logLogout(b, time(7));
+		storage.logLogin(c, time(8));
+
+		storage.trackFileUploads(a, Arrays.asList(new FileUpload("f1.json", "/germany_spain"),
+				new FileUpload("f2.json", "/germany_spain")), time(2));
+		storage.trackFileUploads(a, Collections.singletonList(new FileUpload("f3.json", "/usa_mexico")), time(5));
+		storage.trackFileUploads(b, Collections.singletonList(new FileUpload("it's \u00fc.json", "/germany_spain")), time(3));
+		storage.trackFileUploads(c, Collections.<FileUpload>emptyList(), time(9));
+
+		storage.flush();
+		check(name, storage);
+	}
+
+	private void check(String name, Storage storage) throws IOException {
+		List<String[]> users = Arrays.asList(
+				new String[]{a, time(1)},
+				new String[]{b, time(2)},
+				new String[]{c, time(3)});
+		// By username, latest first
+		List<String[]> logins = Arrays.asList(
+				new String[]{a, time(3), time(4)},
+				new String[]{a, time(1), time(5)},
+				new String[]{b, time(2), time(6)},
+				new String[]{c, time(8), null});
+		List<String[]> uploads = Arrays.asList(
+				new String[]{a, "f3.json", time(5), "/usa_mexico"},
+				new String[]{a, "f2.json", time(2), "/germany_spain"},
+				new String[]{a, "f1.json", time(2), "/germany_spain"},
+				new String[]{b, "it's \u00fc.json", time(3), "/germany_spain"});
+
+		for (int pageSize : PAGE_SIZES) {
+			expect(name + " users", pageSize, users, reader -> storage.users(pageSize, reader));
+			expect(name + " loginHistory", pageSize, logins, reader -> storage.loginHistory(pageSize, reader));
+			expect(name + " fileUploads", pageSize, uploads, reader -> storage.fileUploads(pageSize, reader));
+		}
+		System.out.println(name + ": checked");
+	}
+
+	private interface Read {
+		boolean read(Storage.PageReader reader) throws IOException;
+	}
+
+	/**
+	 * Read a table and compare the rows of this check with expected, in order
+	 */
+	private void expect(String what, int pageSize, List<String[]> expected, Read read) throws IOException {
+		List<String[]> rows = new ArrayList<>();
+		int[] pages = {0, 0};
+		boolean readable = read.read(page -> {
+			pages[0]++;
+			if (page.isEmpty() || page.size() > pageSize)
+				pages[1]++;
+			for (String[] row : page)
+				if (row[0].startsWith(prefix))
+					rows.add(row);
+		});
+		String at = what + " (page size " + pageSize + "): ";
+		if (!readable) {
+			failures.add(at + "cannot be read");
+			return;
+		}
+		if (pages[1] > 0)
+			failures.add(at + pages[1] + " of " + pages[0] + " pages empty or over the page size");
+		if (rows.size() != expected.size()) {
+			failures.add(at + "expected " + expected.size() + " rows, got " + rows.size() + " " + show(rows));
+			return;
+		}
+		for (int i = 0; i < rows.size(); i++) {
+			if (!Arrays.equals(rows.get(i), expected.get(i)))
+				failures.add(at + "row " + i + " expected " + Arrays.toString(expected.get(i)) + ", got " + Arrays.toString(rows.get(i)));
+		}
+	}
+
+	private static String show(List<String[]> rows) {
+		List<String> shown = new ArrayList<>();
+		for (String[] row : rows)
+			shown.add(Arrays.toString(row));
+		return shown.toString();
+	}
+
+	// Distinct times in the Storage format, later for a larger n
+	private static String time(int n) {
+		return String.format("2030-01-01 00:00:%02d", n);
+	}
+}
@@ -0,0 +1,120 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket connections to the SQL server, when it runs on the same host.
+ * They need Java 16 or later, the classes are looked up at runtime so the server still
+ * builds and runs on Java 8 (over TCP).
+ */
+class UnixSocketTransport {
+
+	private static final Method ADDRESS_OF;
+	private static final Method OPEN_CHANNEL;
+	private static final ProtocolFamily UNIX;
+
+	static {
+		Method addressOf = null;
+		Method openChannel = null;
+		ProtocolFamily unix = null;
+		try {
+			addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			unix = StandardProtocolFamily.valueOf("UNIX");
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			addressOf = null;
+		}
+		ADDRESS_OF = addressOf;
+		OPEN_CHANNEL = openChannel;
+		UNIX = unix;
+	}
+
+	private UnixSocketTransport() {
+	}
+
+	static boolean isSupported() {
+		return ADDRESS_OF != null;
+	}
+
+	/**
+	 * A blocking channel connected to the socket file at path
+	 */
+	static SocketChannel connect(String path) throws IOException {
+		if (!isSupported())
+			throw new IOException("Unix domain sockets need Java 16 or later");
+		SocketChannel channel;
+		try {
+			channel = (SocketChannel) OPEN_CHANNEL.invoke(null, UNIX);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		} catch (InvocationTargetException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		try {
+			channel.connect((SocketAddress) ADDRESS_OF.invoke(null, path));
+			return channel;
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			channel.close();
+			throw new IOException("Bad unix socket path " + path, e);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads straight from the channel. Not Channels.newInputStream, which holds the channel's
+	 * blocking lock while it waits, so nothing could be written meanwhile
+	 */
+	static InputStream input(SocketChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	static OutputStream output(SocketChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				while (buf.hasRemaining())
+					channel.write(buf);
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+}
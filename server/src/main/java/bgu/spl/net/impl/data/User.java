@@ -1,36 +1,51 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 public class User {
+	// Connection id of a user that is not logged in
+	public static final int NOT_CONNECTED = -1;
+	private static final AtomicIntegerFieldUpdater<User> CONNECTION_ID =
+			AtomicIntegerFieldUpdater.newUpdater(User.class, "connectionId");
+
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	// The connection the user is logged in on, changed only by compare-and-set
+	private volatile int connectionId;
 
+	/**
+	 * @param connectionId The connection the new user is logged in on, or NOT_CONNECTED
+	 */
 	public User(int connectionId, String name, String password) {
-		this.connectionId = connectionId;
+		// A new user is published through the user map, it needs no fence of its own
+		CONNECTION_ID.lazySet(this, connectionId);
 		this.name = name;
 		this.password = password;
 	}
 
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return connectionId != NOT_CONNECTED;
 	}
 
-	public void login() {
-		isLoggedIn = true;
+	/**
+	 * Log in on connectionId
+	 * @return false if the user is already logged in
+	 */
+	public boolean login(int connectionId) {
+		return CONNECTION_ID.compareAndSet(this, NOT_CONNECTED, connectionId);
 	}
 
-	public void logout() {
-		isLoggedIn = false;
+	/**
+	 * Log out, if the user is logged in on connectionId
+	 * @return false if the user is not logged in on that connection
+	 */
+	public boolean logout(int connectionId) {
+		return CONNECTION_ID.compareAndSet(this, connectionId, NOT_CONNECTED);
 	}
 
 	public int getConnectionId() {
 		return connectionId;
 	}
 
-	public void setConnectionId(int connectionId) {
-		this.connectionId = connectionId;
-	}
-
 
 }
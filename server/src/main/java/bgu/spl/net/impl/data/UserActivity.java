@@ -0,0 +1,56 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per user counts kept up to date as users log in, log out and report files, so the report
+ * summary is read from memory instead of the storage. One fixed size entry per user that did
+ * anything since the server started, by username.
+ */
+class UserActivity {
+
+	static class Entry {
+		final String username;
+		final AtomicInteger logins = new AtomicInteger();
+		final AtomicInteger uploads = new AtomicInteger();
+		volatile String lastLogin;
+		volatile String lastLogout;
+		volatile String lastUpload;
+
+		Entry(String username) {
+			this.username = username;
+		}
+	}
+
+	private final ConcurrentSkipListMap<String, Entry> users = new ConcurrentSkipListMap<>();
+
+	void login(String username, String time) {
+		Entry entry = entry(username);
+		entry.logins.incrementAndGet();
+		entry.lastLogin = time;
+	}
+
+	void logout(String username, String time) {
+		entry(username).lastLogout = time;
+	}
+
+	void uploads(String username, int count, String time) {
+		Entry entry = entry(username);
+		entry.uploads.addAndGet(count);
+		entry.lastUpload = time;
+	}
+
+	/**
+	 * @return a live view of the entries by username
+	 */
+	Collection<Entry> entries() {
+		return users.values();
+	}
+
+	private Entry entry(String username) {
+		Entry entry = users.get(username);
+		return entry != null ? entry : users.computeIfAbsent(username, Entry::new);
+	}
+}
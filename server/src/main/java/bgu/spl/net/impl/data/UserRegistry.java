@@ -0,0 +1,97 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registered users and the connections they are logged in on. No lock is taken: a new user
+ * gets in with putIfAbsent, created already logged in, and a user's login state changes only by
+ * compare-and-set of its connection id (see User). New users are queued for the user store.
+ */
+class UserRegistry {
+
+	private final ConcurrentHashMap<String, User> userMap;
+	private final ConcurrentHashMap<Integer, User> connectionsIdMap = new ConcurrentHashMap<>();
+	// null when users are not kept across restarts
+	private final UserStore userStore;
+
+	/**
+	 * @param userMap The registered users, by name
+	 * @param userStore Where new users are kept, null to keep them in memory only
+	 */
+	UserRegistry(ConcurrentHashMap<String, User> userMap, UserStore userStore) {
+		this.userMap = userMap;
+		this.userStore = userStore;
+	}
+
+	void add(User user) {
+		userMap.putIfAbsent(user.name, user);
+		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
+	}
+
+	User get(String username) {
+		return userMap.get(username);
+	}
+
+	Collection<User> users() {
+		return userMap.values();
+	}
+
+	/**
+	 * Log connectionId in as username, registering username if it is new
+	 */
+	LoginStatus login(int connectionId, String username, String password) {
+		if (connectionsIdMap.containsKey(connectionId)) {
+			return LoginStatus.CLIENT_ALREADY_CONNECTED;
+		}
+		User user = userMap.get(username);
+		if (user == null && (user = addNewUserCase(connectionId, username, password)) == null) {
+			return LoginStatus.ADDED_NEW_USER;
+		}
+		return userExistsCase(connectionId, user, password);
+	}
+
+	/**
+	 * Take the user off connectionId. The user stays logged in until user.logout(connectionId), so
+	 * the caller can record the logout before another connection logs in as the user
+	 * @return the user, or null if the connection has none or another call took it first
+	 */
+	User disconnect(int connectionId) {
+		User user = connectionsIdMap.get(connectionId);
+		// Only one disconnect of a connection gets past remove
+		return user != null && connectionsIdMap.remove(connectionId, user) ? user : null;
+	}
+
+	private LoginStatus userExistsCase(int connectionId, User user, String password) {
+		if (user.isLoggedIn()) {
+			return LoginStatus.ALREADY_LOGGED_IN;
+		} else if (!user.password.equals(password)) {
+			return LoginStatus.WRONG_PASSWORD;
+		} else if (!user.login(connectionId)) {
+			// Another connection logged in as this user since the check above
+			return LoginStatus.ALREADY_LOGGED_IN;
+		} else {
+			connectionsIdMap.put(connectionId, user);
+			return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+		}
+	}
+
+	/**
+	 * Register username, logged in on connectionId
+	 * @return null if this call registered it, otherwise the user another call registered first
+	 */
+	private User addNewUserCase(int connectionId, String username, String password) {
+		// The user is created logged in, only the thread whose user got into the map registers it
+		User user = new User(connectionId, username, password);
+		User registered = userMap.putIfAbsent(username, user);
+		if (registered != null) {
+			return registered;
+		}
+		connectionsIdMap.put(connectionId, user);
+		if (userStore != null) {
+			// Only queued, the user store writes it in the background
+			userStore.append(username, password);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,306 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+/**
+ * The registered users (name and password), kept across restarts so a returning user has to
+ * give the password they registered with.
+ *
+ * They are kept in a binary snapshot of all users and a journal of the users registered since
+ * (the tail). Taking a snapshot first moves the tail aside (.old), so registrations go on into
+ * a new tail while the snapshot is written; once the snapshot is in place the old tail is deleted.
+ * Loading reads the snapshot, then the old tail (left if a snapshot did not finish), then the tail.
+ *
+ * Snapshot: [int MAGIC][int users][int segments][long offset of each segment], then the users,
+ * SEGMENT_USERS per segment, each as [int length][name][int length][password] in UTF-8.
+ * The segments are decoded in parallel. The tail holds [int length][name][int length][password]
+ * records; a record cut off by a crash is dropped on load.
+ *
+ * Registering only queues the record, so a login never waits for the file or for another
+ * registration. A writer thread appends whatever is queued to the tail in one write; a snapshot
+ * first writes what is still queued.
+ */
+class UserStore {
+
+	private static final int MAGIC = 0x53555331;
+	private static final int SEGMENT_USERS = 16384;
+	// Initial size of the user map, so a burst of registrations right after a start does not make
+	// every registering thread help resize it
+	static final int MIN_USERS = 1 << 16;
+	private static final int GROUP_SIZE = 1 << 16;
+
+	private final Path snapshot;
+	private final Path tail;
+	private final Path oldTail;
+	// One snapshot at a time
+	private final Object snapshotLock = new Object();
+	// Records of registered users not written to the tail yet
+	private final ConcurrentLinkedQueue<byte[]> unwritten = new ConcurrentLinkedQueue<>();
+	private Thread tailWriter;
+	// Set while the tail writer may be parked, registrations wake it up
+	private volatile boolean writerWaiting;
+	// Guarded by this
+	private FileChannel tailChannel;
+	private int registeredSinceSnapshot;
+	private final ByteBuffer group = ByteBuffer.allocate(GROUP_SIZE);
+
+	UserStore(Path snapshot) {
+		this.snapshot = snapshot;
+		this.tail = snapshot.resolveSibling(snapshot.getFileName() + ".tail");
+		this.oldTail = snapshot.resolveSibling(snapshot.getFileName() + ".tail.old");
+	}
+
+	/**
+	 * Read every stored user into a new map, sized for them, and open the tail for registrations
+	 */
+	ConcurrentHashMap<String, User> load() throws IOException {
+		ConcurrentHashMap<String, User> users;
+		if (Files.exists(snapshot)) {
+			try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (map.getInt(0) != MAGIC)
+					throw new IOException("Not a user snapshot: " + snapshot);
+				int count = map.getInt(4);
+				int segments = map.getInt(8);
+				// Room for the stored users and as many new ones before the map has to grow
+				users = new ConcurrentHashMap<>(Math.max(MIN_USERS, 2 * count));
+				ConcurrentHashMap<String, User> into = users;
+				IntStream.range(0, segments).parallel().forEach(segment -> {
+					ByteBuffer in = map.duplicate();
+					in.position((int) map.getLong(12 + 8 * segment));
+					int n = Math.min(SEGMENT_USERS, count - segment * SEGMENT_USERS);
+					for (int i = 0; i < n; i++) {
+						String name = readString(in);
+						into.putIfAbsent(name, new User(User.NOT_CONNECTED, name, readString(in)));
+					}
+				});
+			}
+		} else {
+			users = new ConcurrentHashMap<>(MIN_USERS);
+		}
+		if (Files.exists(oldTail))
+			registeredSinceSnapshot += readTail(oldTail, users);
+		if (Files.exists(tail))
+			registeredSinceSnapshot += readTail(tail, users);
+		tailChannel = FileChannel.open(tail, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		tailWriter = new Thread(this::writeTail, "user-tail");
+		tailWriter.setDaemon(true);
+		tailWriter.start();
+		return users;
+	}
+
+	/**
+	 * Queue a new user for the tail, the tail writer appends it shortly
+	 */
+	void append(String name, String password) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+		int length = 8 + nameBytes.length + passwordBytes.length;
+		ByteBuffer record = ByteBuffer.allocate(4 + length);
+		record.putInt(length).putInt(nameBytes.length).put(nameBytes).putInt(passwordBytes.length).put(passwordBytes);
+		unwritten.add(record.array());
+		if (writerWaiting)
+			LockSupport.unpark(tailWriter);
+	}
+
+	/**
+	 * Write the queued users to the tail now
+	 */
+	synchronized void flush() throws IOException {
+		byte[] record;
+		while ((record = unwritten.poll()) != null) {
+			if (group.remaining() < record.length)
+				writeGroup();
+			if (record.length > group.capacity())
+				writeFully(ByteBuffer.wrap(record));
+			else
+				group.put(record);
+			registeredSinceSnapshot++;
+		}
+		writeGroup();
+	}
+
+	private void writeTail() {
+		while (true) {
+			writerWaiting = true;
+			// Checked after announcing the wait, so a record queued meanwhile is never missed
+			if (unwritten.isEmpty())
+				LockSupport.park(this);
+			writerWaiting = false;
+			try {
+				flush();
+			} catch (IOException e) {
+				System.err.println("User store error: " + e.getMessage());
+			}
+		}
+	}
+
+	// Guarded by this
+	private void writeGroup() throws IOException {
+		group.flip();
+		try {
+			writeFully(group);
+		} finally {
+			group.clear();
+		}
+	}
+
+	// Guarded by this
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			tailChannel.write(buf);
+	}
+
+	/**
+	 * Write a snapshot of users if anyone registered since the last one
+	 * @param users Every registered user, including all those in the tail
+	 */
+	void snapshot(Collection<User> users) throws IOException {
+		synchronized (snapshotLock) {
+			takeSnapshot(users);
+		}
+	}
+
+	/**
+	 * Take a snapshot of users every period seconds in the background, and one when the server stops
+	 */
+	void startSnapshots(Collection<User> users, long periodSeconds) {
+		Runnable take = () -> {
+			try {
+				snapshot(users);
+			} catch (IOException e) {
+				System.err.println("User snapshot failed: " + e.getMessage());
+			}
+		};
+		if (periodSeconds > 0) {
+			Thread snapshots = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(periodSeconds * 1000);
+						take.run();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "user-snapshot");
+			snapshots.setDaemon(true);
+			snapshots.start();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(take, "user-snapshot-shutdown"));
+	}
+
+	private void takeSnapshot(Collection<User> users) throws IOException {
+		synchronized (this) {
+			flush();
+			if (registeredSinceSnapshot == 0 && !Files.exists(oldTail))
+				return;
+			tailChannel.close();
+			if (Files.exists(oldTail)) {
+				// The last snapshot failed, its old tail still counts
+				try (FileChannel from = FileChannel.open(tail, StandardOpenOption.READ);
+					 FileChannel to = FileChannel.open(oldTail, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+					long done = 0;
+					while (done < from.size())
+						done += from.transferTo(done, from.size() - done, to);
+				}
+				Files.delete(tail);
+			} else {
+				Files.move(tail, oldTail, StandardCopyOption.ATOMIC_MOVE);
+			}
+			tailChannel = FileChannel.open(tail, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			registeredSinceSnapshot = 0;
+		}
+		// Everyone in the old tail is in users already; users registered from here on may be in
+		// both the snapshot and the new tail, loading keeps the first
+		List<User> all = new ArrayList<>(users);
+		Path next = snapshot.resolveSibling(snapshot.getFileName() + ".next");
+		int segments = (all.size() + SEGMENT_USERS - 1) / SEGMENT_USERS;
+		try (FileChannel out = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(12 + 8 * segments);
+			header.putInt(MAGIC).putInt(all.size()).putInt(segments);
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+			long position = header.capacity();
+			for (int i = 0; i < all.size(); i++) {
+				if (i % SEGMENT_USERS == 0)
+					header.putLong(position + buf.position());
+				User user = all.get(i);
+				byte[] name = user.name.getBytes(StandardCharsets.UTF_8);
+				byte[] password = user.password.getBytes(StandardCharsets.UTF_8);
+				if (buf.remaining() < 8 + name.length + password.length) {
+					position += write(out, buf, position);
+					if (buf.capacity() < 8 + name.length + password.length)
+						buf = ByteBuffer.allocate(8 + name.length + password.length);
+				}
+				buf.putInt(name.length).put(name).putInt(password.length).put(password);
+			}
+			write(out, buf, position);
+			write(out, header, 0);
+			out.force(true);
+		}
+		Files.move(next, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(oldTail);
+	}
+
+	/**
+	 * Write what was put in buf at position of out
+	 * @return bytes written
+	 */
+	private static int write(FileChannel out, ByteBuffer buf, long position) throws IOException {
+		buf.flip();
+		int written = 0;
+		while (buf.hasRemaining())
+			written += out.write(buf, position + written);
+		buf.clear();
+		return written;
+	}
+
+	/**
+	 * Add the users of a tail file, cutting off a record a crash left unfinished
+	 * @return number of records read
+	 */
+	private static int readTail(Path file, ConcurrentHashMap<String, User> users) throws IOException {
+		int read = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int end = 0;
+			try {
+				while (in.remaining() >= 4) {
+					int length = in.getInt();
+					if (length < 8 || length > in.remaining())
+						break;
+					String name = readString(in);
+					users.putIfAbsent(name, new User(User.NOT_CONNECTED, name, readString(in)));
+					end = in.position();
+					read++;
+				}
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				// Cut off record, dropped below
+			}
+			if (end < channel.size())
+				channel.truncate(end);
+		}
+		return read;
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
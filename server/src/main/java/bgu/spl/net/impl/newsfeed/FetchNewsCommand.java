@@ -1,10 +1,13 @@
 package bgu.spl.net.impl.newsfeed;
 
 import bgu.spl.net.impl.rci.Command;
+import bgu.spl.net.impl.rci.RciCodec;
 import java.io.Serializable;
 
 public class FetchNewsCommand implements Command<NewsFeed> {
 
+    private static final long serialVersionUID = 1L;
+
     private String channel;
 
     public FetchNewsCommand(String channel) {
@@ -16,4 +19,13 @@ public class FetchNewsCommand implements Command<NewsFeed> {
         return feed.fetch(channel);
     }
 
+    // YA - field writer and reader for RciCodec
+    static void write(FetchNewsCommand cmd, RciCodec.Output out) {
+        out.writeString(cmd.channel);
+    }
+
+    static FetchNewsCommand read(RciCodec.Input in) {
+        return new FetchNewsCommand(in.readString());
+    }
+
 }
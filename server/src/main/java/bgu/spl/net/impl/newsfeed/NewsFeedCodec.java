@@ -0,0 +1,16 @@
+package bgu.spl.net.impl.newsfeed;
+
+import bgu.spl.net.impl.rci.RciCodec;
+
+/**
+ * YA - the news feed commands on the wire, the same tags on the server and the clients
+ */
+public class NewsFeedCodec {
+
+    public static final RciCodec CODEC = new RciCodec()
+            .register(RciCodec.FIRST_TAG, PublishNewsCommand.class, PublishNewsCommand::write, PublishNewsCommand::read)
+            .register(RciCodec.FIRST_TAG + 1, FetchNewsCommand.class, FetchNewsCommand::write, FetchNewsCommand::read);
+
+    private NewsFeedCodec() {
+    }
+}
@@ -0,0 +1,77 @@
+package bgu.spl.net.impl.newsfeed;
+
+import bgu.spl.net.impl.rci.ObjectEncoderDecoder;
+import bgu.spl.net.impl.rci.RciMessage;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * YA - encode + decode round trips of the news feed messages, with NewsFeedCodec and with plain
+ * YA - Java serialization (ObjectEncoderDecoder without a codec), run by hand
+ * YA - without a codec only the commands are Java serialized, the built in types of RciCodec
+ * YA - (the String and ArrayList replies) are written the same way by both
+ * YA - every case is warmed up (5 x 20k) and then timed 5 x 50k, the median is printed with the
+ * YA - encoded size; each encoding is best run in a JVM of its own, the second finds the JIT warm
+ *
+ * YA - usage: NewsFeedCodecBench [codec|serialized|both]
+ */
+public class NewsFeedCodecBench {
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int WARMUP_ROUND_TRIPS = 20000;
+    private static final int RUNS = 5;
+    private static final int ROUND_TRIPS = 50000;
+
+    // YA - read after the runs, so the JIT cannot drop the work
+    private static long sink;
+
+    public static void main(String[] args) {
+        String which = args.length > 0 ? args[0] : "both";
+        ArrayList<String> news = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            news.add("headline number " + i + " of the day");
+        String[] names = {"PublishNewsCommand", "FetchNewsCommand", "reply \"OK\"", "reply 10 headlines"};
+        Serializable[] messages = {
+                new PublishNewsCommand("headlines", "new SPL assignment is out soon!!"),
+                new FetchNewsCommand("headlines"),
+                "OK",
+                news
+        };
+
+        for (String encoding : new String[] {"codec", "serialized"}) {
+            if (!which.equals("both") && !which.equals(encoding))
+                continue;
+            boolean codec = encoding.equals("codec");
+            // YA - separate encoder and decoder, as on the two ends of a connection
+            ObjectEncoderDecoder encoder = codec ? new ObjectEncoderDecoder(NewsFeedCodec.CODEC) : new ObjectEncoderDecoder();
+            ObjectEncoderDecoder decoder = codec ? new ObjectEncoderDecoder(NewsFeedCodec.CODEC) : new ObjectEncoderDecoder();
+            for (int m = 0; m < messages.length; m++) {
+                // YA - sent as the client and the server send them, with a request id
+                RciMessage message = new RciMessage(m + 1, messages[m]);
+                for (int w = 0; w < WARMUP_RUNS; w++)
+                    roundTrips(encoder, decoder, message, WARMUP_ROUND_TRIPS);
+                double[] nanos = new double[RUNS];
+                for (int r = 0; r < RUNS; r++)
+                    nanos[r] = roundTrips(encoder, decoder, message, ROUND_TRIPS);
+                Arrays.sort(nanos);
+                System.out.printf("%-10s %-20s %5d bytes %8.2f us per round trip%n",
+                        encoding, names[m], encoder.encode(message).length, nanos[RUNS / 2] / 1000);
+            }
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    // YA - nanoseconds per round trip
+    private static double roundTrips(ObjectEncoderDecoder encoder, ObjectEncoderDecoder decoder, RciMessage message, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = encoder.encode(message);
+            RciMessage back = decoder.decode(ByteBuffer.wrap(bytes));
+            sink += bytes.length + back.id;
+        }
+        return (System.nanoTime() - start) / (double) count;
+    }
+}
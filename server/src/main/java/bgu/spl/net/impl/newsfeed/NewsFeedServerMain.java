@@ -3,24 +3,28 @@ package bgu.spl.net.impl.newsfeed;
 import bgu.spl.net.impl.rci.ObjectEncoderDecoder;
 import bgu.spl.net.impl.rci.RemoteCommandInvocationProtocol;
 import bgu.spl.net.srv.Server;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class NewsFeedServerMain {
 
     public static void main(String[] args) {
         NewsFeed feed = new NewsFeed(); //one shared object
+        // YA - commands of all clients run here, their replies go out as each one is done
+        ExecutorService commands = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
         // you can use any server... 
         Server.threadPerClient(
                 7777, //port
-                () -> new RemoteCommandInvocationProtocol<>(feed), //protocol factory
-                ObjectEncoderDecoder::new //message encoder decoder factory
+                () -> new RemoteCommandInvocationProtocol<>(feed, commands), //protocol factory
+                () -> new ObjectEncoderDecoder(NewsFeedCodec.CODEC) //message encoder decoder factory
         ).serve();
 
         // Server.reactor(
         //         Runtime.getRuntime().availableProcessors(),
         //         7777, //port
-        //         () ->  new RemoteCommandInvocationProtocol<>(feed), //protocol factory
-        //         ObjectEncoderDecoder::new //message encoder decoder factory
+        //         () ->  new RemoteCommandInvocationProtocol<>(feed, commands), //protocol factory
+        //         () -> new ObjectEncoderDecoder(NewsFeedCodec.CODEC) //message encoder decoder factory
         // ).serve();
     }
 }
@@ -1,10 +1,13 @@
 package bgu.spl.net.impl.newsfeed;
 
 import bgu.spl.net.impl.rci.Command;
+import bgu.spl.net.impl.rci.RciCodec;
 import java.io.Serializable;
 
 public class PublishNewsCommand implements Command<NewsFeed> {
  
+    private static final long serialVersionUID = 1L;
+
     private String channel;
     private String news;
  
@@ -18,5 +21,16 @@ public class PublishNewsCommand implements Command<NewsFeed> {
         feed.publish(channel, news);
         return "OK";
     }
+
+    // YA - field writer and reader for RciCodec
+    static void write(PublishNewsCommand cmd, RciCodec.Output out) {
+        out.writeString(cmd.channel);
+        out.writeString(cmd.news);
+    }
+
+    static PublishNewsCommand read(RciCodec.Input in) {
+        String channel = in.readString();
+        return new PublishNewsCommand(channel, in.readString());
+    }
  
 }
\ No newline at end of file
@@ -0,0 +1,15 @@
+package bgu.spl.net.impl.rci;
+
+/**
+ * YA - the reply to a command that threw instead of returning a result
+ * YA - only the description of the failure crosses the connection, the command's own exception
+ * YA - may not be serializable; RCIClient fails the command's future with it
+ */
+public class CommandFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public CommandFailedException(String message) {
+        super(message);
+    }
+}
@@ -1,79 +1,161 @@
 package bgu.spl.net.impl.rci;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * YA - a message is the length of its value (4 bytes), its request id (4 bytes) and the value as
+ * YA - RciCodec writes it; it is decoded as an RciMessage, and encoded from an RciMessage or from
+ * YA - any other value with request id 0
+ * YA - commands registered with the codec are written field by field, anything else is
+ * YA - Java serialized; messages larger than maxFrameSize are refused both ways
+ */
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
-    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 << 20; // 16MB
+
+    // YA - only the built in types, every command is Java serialized
+    private static final RciCodec BUILT_IN = new RciCodec();
+
+    // YA - messages are encoded in a per-thread scratch buffer, a thread keeps it up to this size
+    private static final int SCRATCH_SIZE = 8 << 10; // 8KB
+    private static final int MAX_SCRATCH_SIZE = 1 << 20; // 1MB
+    private static final ThreadLocal<RciCodec.Output> SCRATCH = ThreadLocal.withInitial(() -> new RciCodec.Output(SCRATCH_SIZE));
+
+    // YA - a connection keeps the buffer of a message split between reads up to this size
+    private static final int MAX_KEPT_FRAME_SIZE = 64 << 10; // 64KB
+
+    private final RciCodec codec;
+    private final int maxFrameSize;
+
+    private static final int HEADER_SIZE = 8;
+
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer oneByte = ByteBuffer.allocate(1);
+    // YA - the message being read while it is split between reads
     private byte[] objectBytes = null;
+    private int objectLength = -1; // YA - -1 while reading the header
+    private int objectId;
     private int objectBytesIndex = 0;
 
+    public ObjectEncoderDecoder() {
+        this(BUILT_IN, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public ObjectEncoderDecoder(RciCodec codec) {
+        this(codec, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public ObjectEncoderDecoder(RciCodec codec, int maxFrameSize) {
+        this.codec = codec;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public RciMessage decodeNextByte(byte nextByte) {
+        oneByte.clear();
+        oneByte.put(nextByte).flip();
+        return decode(oneByte);
+    }
+
     @Override
-    public Serializable decodeNextByte(byte nextByte) {
-        if (objectBytes == null) { //indicates that we are still reading the length
-            lengthBuffer.put(nextByte);
-            if (!lengthBuffer.hasRemaining()) { //we read 4 bytes and therefore can take the length
-                lengthBuffer.flip();
-                objectBytes = new byte[lengthBuffer.getInt()];
-                objectBytesIndex = 0;
-                lengthBuffer.clear();
+    public RciMessage decode(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            if (objectLength < 0) {
+                // YA - the whole message is in buf, read it where it is
+                if (headerBuffer.position() == 0 && buf.remaining() >= HEADER_SIZE) {
+                    int length = checkLength(buf.getInt(buf.position()));
+                    if (buf.remaining() >= HEADER_SIZE + length) {
+                        int id = buf.getInt(buf.position() + 4);
+                        ByteBuffer message = buf.duplicate();
+                        message.position(buf.position() + HEADER_SIZE).limit(buf.position() + HEADER_SIZE + length);
+                        buf.position(buf.position() + HEADER_SIZE + length);
+                        return new RciMessage(id, deserializeObject(message));
+                    }
+                }
+                headerBuffer.put(buf.get());
+                if (!headerBuffer.hasRemaining()) { //we read the header and therefore can take the length
+                    headerBuffer.flip();
+                    objectLength = checkLength(headerBuffer.getInt());
+                    objectId = headerBuffer.getInt();
+                    headerBuffer.clear();
+                    if (objectBytes == null || objectBytes.length < objectLength)
+                        objectBytes = new byte[objectLength];
+                    objectBytesIndex = 0;
+                }
+            } else {
+                int n = Math.min(objectLength - objectBytesIndex, buf.remaining());
+                buf.get(objectBytes, objectBytesIndex, n);
+                objectBytesIndex += n;
             }
-        } else {
-            objectBytes[objectBytesIndex] = nextByte;
-            if (++objectBytesIndex == objectBytes.length) {
-                Serializable result = deserializeObject();
-                objectBytes = null;
-                return result;
+            if (objectLength >= 0 && objectBytesIndex == objectLength) {
+                ByteBuffer message = ByteBuffer.wrap(objectBytes, 0, objectLength);
+                objectLength = -1;
+                if (objectBytes.length > MAX_KEPT_FRAME_SIZE)
+                    objectBytes = null;
+                return new RciMessage(objectId, deserializeObject(message));
             }
         }
-
         return null;
     }
 
     @Override
     public byte[] encode(Serializable message) {
-        return serializeObject(message);
+        RciCodec.Output out = serializeObject(message);
+        return Arrays.copyOf(out.bytes(), out.length());
     }
 
-    private Serializable deserializeObject() {
-        try {
-            ObjectInput in = new ObjectInputStream(new ByteArrayInputStream(objectBytes));
-            return (Serializable) in.readObject();
-        } catch (Exception ex) {
-            throw new IllegalArgumentException("cannot desrialize object", ex);
-        }
+    @Override
+    public boolean encodeTo(Serializable message, ByteBuffer buf) {
+        RciCodec.Output out = serializeObject(message);
+        if (out.length() > buf.remaining())
+            return false;
+        buf.put(out.bytes(), 0, out.length());
+        return true;
+    }
 
+    private int checkLength(int length) {
+        if (length < 0 || length > maxFrameSize)
+            throw new IllegalArgumentException("message size " + length + " is over the limit of " + maxFrameSize);
+        return length;
     }
 
-    private byte[] serializeObject(Serializable message) {
+    private Serializable deserializeObject(ByteBuffer message) {
         try {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-
-            //placeholder for the object size
-            for (int i = 0; i < 4; i++) {
-                bytes.write(0);
-            }
-
-            ObjectOutput out = new ObjectOutputStream(bytes);
-            out.writeObject(message);
-            out.flush();
-            byte[] result = bytes.toByteArray();
-
-            //now write the object size
-            ByteBuffer.wrap(result).putInt(result.length - 4);
-            return result;
+            Object result = codec.read(new RciCodec.Input(message));
+            if (message.hasRemaining())
+                throw new IllegalArgumentException(message.remaining() + " bytes left after the object");
+            return (Serializable) result;
+        } catch (BufferUnderflowException | ClassCastException ex) {
+            throw new IllegalArgumentException("cannot desrialize object", ex);
+        }
+    }
 
-        } catch (Exception ex) {
-            throw new IllegalArgumentException("cannot serialize object", ex);
+    /**
+     * YA - the whole message, header first, in this thread's scratch buffer
+     */
+    private RciCodec.Output serializeObject(Serializable message) {
+        int id = 0;
+        if (message instanceof RciMessage) {
+            id = ((RciMessage) message).id;
+            message = ((RciMessage) message).body;
+        }
+        RciCodec.Output out = SCRATCH.get();
+        if (out.bytes().length > MAX_SCRATCH_SIZE) {
+            out = new RciCodec.Output(SCRATCH_SIZE);
+            SCRATCH.set(out);
         }
+        out.reset();
+        out.writeInt(0); //placeholder for the object size
+        out.writeInt(id);
+        codec.write(message, out);
+        int length = out.length() - HEADER_SIZE;
+        checkLength(length);
+        out.putInt(0, length);
+        return out;
     }
 
 }
@@ -1,48 +1,178 @@
 package bgu.spl.net.impl.rci;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * YA - sends commands without waiting for the replies to the ones before them
+ * YA - every command gets a request id and a future, a reader thread completes the future when the
+ * YA - reply with that id arrives, in whatever order the server answers; send() and receive() are
+ * YA - kept for callers that want the replies in the order of their commands
+ */
 public class RCIClient implements Closeable {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+
     private final ObjectEncoderDecoder encdec;
     private final Socket sock;
-    private final BufferedInputStream in;
+    private final InputStream in;
     private final BufferedOutputStream out;
 
+    private final AtomicInteger nextId = new AtomicInteger();
+    // YA - commands sent and not answered yet, by request id
+    private final ConcurrentHashMap<Integer, CompletableFuture<Serializable>> pending = new ConcurrentHashMap<>();
+    // YA - futures of the commands given to send(), in order, for receive()
+    private final ConcurrentLinkedQueue<CompletableFuture<Serializable>> sent = new ConcurrentLinkedQueue<>();
+    // YA - set once the connection is gone, every pending and later command fails with it
+    private volatile IOException failure;
+
     public RCIClient(String host, int port) throws IOException {
+        this(host, port, new ObjectEncoderDecoder());
+    }
+
+    // YA - codec holds the commands the server registered too, the others are Java serialized
+    public RCIClient(String host, int port, RciCodec codec) throws IOException {
+        this(host, port, new ObjectEncoderDecoder(codec));
+    }
+
+    private RCIClient(String host, int port, ObjectEncoderDecoder encdec) throws IOException {
         sock = new Socket(host, port);
-        encdec = new ObjectEncoderDecoder();
-        in = new BufferedInputStream(sock.getInputStream());
+        this.encdec = encdec;
+        in = sock.getInputStream();
         out = new BufferedOutputStream(sock.getOutputStream());
+        Thread reader = new Thread(this::readReplies, "rci-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * YA - send cmd and return at once
+     * @return completed with the reply to cmd, exceptionally with a CommandFailedException if cmd
+     * threw on the server, or with an IOException if the connection is lost before it arrives
+     */
+    public CompletableFuture<Serializable> submit(Command<?> cmd) {
+        int id = newId();
+        CompletableFuture<Serializable> reply = new CompletableFuture<>();
+        // YA - registered before it is written, the reply may come before write() returns
+        pending.put(id, reply);
+        try {
+            if (failure != null)
+                throw failure;
+            byte[] bytes = encdec.encode(new RciMessage(id, cmd));
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            pending.remove(id);
+            reply.completeExceptionally(ex);
+        }
+        return reply;
     }
 
     public void send(Command<?> cmd) throws IOException {
-        out.write(encdec.encode(cmd));
-        out.flush();
+        CompletableFuture<Serializable> reply = submit(cmd);
+        if (reply.isCompletedExceptionally())
+            result(reply); // YA - throws why it failed
+        sent.add(reply);
     }
 
+    /**
+     * YA - wait for the reply to the oldest command given to send() that was not received yet
+     */
     public Serializable receive() throws IOException {
-        int read;
-        while ((read = in.read()) >= 0) {
-            Serializable msg = encdec.decodeNextByte((byte) read);
-            if (msg != null) {
-                return msg;
-            }
-        }
+        CompletableFuture<Serializable> reply = sent.poll();
+        if (reply == null)
+            throw new IllegalStateException("no command was sent");
+        return result(reply);
+    }
 
-        throw new IOException("disconnected before complete reading message");
+    private static Serializable result(CompletableFuture<Serializable> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a reply");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("command failed", ex.getCause());
+        }
     }
 
     @Override
     public void close() throws IOException {
-        out.close();
-        in.close();
-        sock.close();
+        try {
+            synchronized (out) {
+                out.close();
+            }
+        } finally {
+            sock.close();
+            fail(new IOException("client closed"));
+        }
+    }
+
+    private int newId() {
+        // YA - 0 means a message without an id, skipped when the counter wraps around
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
+
+    private void readReplies() {
+        byte[] chunk = new byte[READ_CHUNK_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        try {
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                buf.limit(read).position(0);
+                while (buf.hasRemaining()) {
+                    RciMessage reply = encdec.decode(buf);
+                    if (reply != null) {
+                        CompletableFuture<Serializable> future = pending.remove(reply.id);
+                        if (future == null)
+                            continue;
+                        if (reply.body instanceof CommandFailedException)
+                            future.completeExceptionally((CommandFailedException) reply.body);
+                        else
+                            future.complete(reply.body);
+                    }
+                }
+            }
+            fail(new IOException("disconnected before complete reading message"));
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            fail(new IOException("cannot read reply", ex));
+        }
+    }
+
+    /**
+     * YA - the connection is gone, fail whatever waits for a reply and everything sent from now on
+     */
+    private void fail(IOException ex) {
+        if (failure == null)
+            failure = ex;
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<Serializable> future = pending.remove(id);
+            if (future != null)
+                future.completeExceptionally(failure);
+        }
     }
 
 }
@@ -0,0 +1,292 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * YA - binary encoding of RCI messages, commands and their replies
+ * YA - a value is a tag byte and its fields; classes registered with a tag are written by their
+ * YA - own field writer and read back by their field reader, strings, numbers and ArrayLists are
+ * YA - built in, any other Serializable falls back to Java serialization
+ * YA - register every class before the codec is used, the registry is not changed afterwards
+ */
+public class RciCodec {
+
+    public interface FieldWriter<T> {
+        void write(T value, Output out);
+    }
+
+    public interface FieldReader<T> {
+        T read(Input in);
+    }
+
+    // YA - built in tags, registered classes use FIRST_TAG and up
+    private static final byte NULL = 0;
+    private static final byte SERIALIZED = 1;
+    private static final byte STRING = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte LIST = 6;
+    public static final int FIRST_TAG = 16;
+
+    private static class Registration<T> {
+        final byte tag;
+        final FieldWriter<T> writer;
+        final FieldReader<T> reader;
+
+        Registration(byte tag, FieldWriter<T> writer, FieldReader<T> reader) {
+            this.tag = tag;
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+
+    private final Map<Class<?>, Registration<?>> byClass = new IdentityHashMap<>();
+    private final Registration<?>[] byTag = new Registration<?>[256];
+
+    /**
+     * YA - give type a tag and the code that writes and reads its fields
+     * @param tag FIRST_TAG to 255, the same on both ends of the connection
+     */
+    public <T extends Serializable> RciCodec register(int tag, Class<T> type, FieldWriter<T> writer, FieldReader<T> reader) {
+        if (tag < FIRST_TAG || tag > 255)
+            throw new IllegalArgumentException("tag must be between " + FIRST_TAG + " and 255: " + tag);
+        if (byTag[tag] != null || byClass.containsKey(type))
+            throw new IllegalArgumentException("already registered: " + tag + " " + type.getName());
+        Registration<T> registration = new Registration<>((byte) tag, writer, reader);
+        byTag[tag] = registration;
+        byClass.put(type, registration);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    void write(Object value, Output out) {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Registration<Object> registration = (Registration<Object>) byClass.get(value.getClass());
+        if (registration != null) {
+            out.writeByte(registration.tag);
+            registration.writer.write(value, out);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (value.getClass() == ArrayList.class) {
+            ArrayList<?> list = (ArrayList<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list)
+                write(element, out);
+        } else {
+            out.writeByte(SERIALIZED);
+            out.writeSerialized(value);
+        }
+    }
+
+    Object read(Input in) {
+        int tag = in.readByte() & 0xFF;
+        switch (tag) {
+            case NULL:
+                return null;
+            case SERIALIZED:
+                return in.readSerialized();
+            case STRING:
+                return in.readString();
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case LIST:
+                int size = in.readInt();
+                // YA - every element takes at least its tag byte, a bad size fails here and not in the allocation
+                if (size < 0 || size > in.buf.remaining())
+                    throw new IllegalArgumentException("bad list size " + size);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(read(in));
+                return list;
+            default:
+                Registration<?> registration = byTag[tag];
+                if (registration == null)
+                    throw new IllegalArgumentException("unknown tag " + tag);
+                return registration.reader.read(in);
+        }
+    }
+
+    /**
+     * YA - growable byte array the fields are written into, reused for every message a thread encodes
+     */
+    public static class Output {
+
+        private byte[] bytes;
+        private int length;
+
+        Output(int initialSize) {
+            bytes = new byte[initialSize];
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        public void writeByte(int value) {
+            ensure(1);
+            bytes[length++] = (byte) value;
+        }
+
+        public void writeInt(int value) {
+            ensure(4);
+            putInt(length, value);
+            length += 4;
+        }
+
+        public void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        /**
+         * YA - byte length and UTF-8 bytes, -1 for null; ASCII is copied without encoding
+         */
+        public void writeString(String value) {
+            if (value == null) {
+                writeInt(-1);
+                return;
+            }
+            int n = value.length();
+            ensure(4 + n);
+            int start = length + 4;
+            int i = 0;
+            for (; i < n; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80)
+                    break;
+                bytes[start + i] = (byte) c;
+            }
+            if (i == n) {
+                putInt(length, n);
+                length = start + n;
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        void writeSerialized(Object value) {
+            try {
+                ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(serialized);
+                out.writeObject(value);
+                out.flush();
+                writeInt(serialized.size());
+                ensure(serialized.size());
+                System.arraycopy(serialized.toByteArray(), 0, bytes, length, serialized.size());
+                length += serialized.size();
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("cannot serialize object", ex);
+            }
+        }
+
+        void putInt(int at, int value) {
+            bytes[at] = (byte) (value >>> 24);
+            bytes[at + 1] = (byte) (value >>> 16);
+            bytes[at + 2] = (byte) (value >>> 8);
+            bytes[at + 3] = (byte) value;
+        }
+
+        private void ensure(int needed) {
+            if (length + needed > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+        }
+    }
+
+    /**
+     * YA - reads the fields of one message straight from the buffer holding it
+     */
+    public static class Input {
+
+        private final ByteBuffer buf;
+
+        Input(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public byte readByte() {
+            return buf.get();
+        }
+
+        public int readInt() {
+            return buf.getInt();
+        }
+
+        public long readLong() {
+            return buf.getLong();
+        }
+
+        public String readString() {
+            int n = buf.getInt();
+            if (n == -1)
+                return null;
+            if (n < 0 || n > buf.remaining())
+                throw new BufferUnderflowException();
+            String value;
+            if (buf.hasArray()) {
+                value = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+                buf.position(buf.position() + n);
+            } else {
+                byte[] utf8 = new byte[n];
+                buf.get(utf8);
+                value = new String(utf8, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        Object readSerialized() {
+            int n = buf.getInt();
+            if (n < 0 || n > buf.remaining())
+                throw new BufferUnderflowException();
+            byte[] serialized = new byte[n];
+            buf.get(serialized);
+            try {
+                return new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+            } catch (IOException | ClassNotFoundException ex) {
+                throw new IllegalArgumentException("cannot desrialize object", ex);
+            }
+        }
+    }
+}
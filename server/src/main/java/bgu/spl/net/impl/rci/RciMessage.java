@@ -0,0 +1,26 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.Serializable;
+
+/**
+ * YA - a command or a reply together with the request id that pairs them
+ * YA - the client gives every command its own id and the server replies with the same id, so
+ * YA - replies may come back in any order; 0 is the id of a message sent without one
+ */
+public final class RciMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final int id;
+    public final Serializable body;
+
+    public RciMessage(int id, Serializable body) {
+        this.id = id;
+        this.body = body;
+    }
+
+    @Override
+    public String toString() {
+        return "RciMessage{id=" + id + ", body=" + body + "}";
+    }
+}
@@ -1,19 +1,64 @@
 package bgu.spl.net.impl.rci;
 
-import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.srv.Connections;
 import java.io.Serializable;
+import java.util.concurrent.Executor;
 
-public class RemoteCommandInvocationProtocol<T> implements MessagingProtocol<Serializable> {
+/**
+ * YA - runs the commands a client sends against arg and replies with their results
+ * YA - without an executor commands run one after the other and replies go out in order; with
+ * YA - one, commands that carry a request id run on it and each reply is sent as soon as its
+ * YA - command is done, so a slow command does not hold back the replies to the ones after it
+ * YA - a command that throws is answered with a CommandFailedException, on either path
+ */
+public class RemoteCommandInvocationProtocol<T> implements StompMessagingProtocol<Serializable> {
 
-    private T arg;
+    private final T arg;
+    private final Executor executor;
+    private int connectionId;
+    private Connections<Serializable> connections;
 
     public RemoteCommandInvocationProtocol(T arg) {
+        this(arg, null);
+    }
+
+    public RemoteCommandInvocationProtocol(T arg, Executor executor) {
         this.arg = arg;
+        this.executor = executor;
+    }
+
+    @Override
+    public void start(int connectionId, Connections<Serializable> connections) {
+        this.connectionId = connectionId;
+        this.connections = connections;
     }
 
     @Override
     public Serializable process(Serializable msg) {
-        return ((Command) msg).execute(arg);
+        RciMessage request = msg instanceof RciMessage ? (RciMessage) msg : new RciMessage(0, msg);
+        // YA - a message without an id is paired with its reply by order, it is answered in order
+        if (executor == null || connections == null || request.id == 0)
+            return execute(request);
+        executor.execute(() -> connections.send(connectionId, execute(request)));
+        return null;
+    }
+
+    private RciMessage execute(RciMessage request) {
+        Serializable result;
+        try {
+            result = command(request.body).execute(arg);
+        } catch (RuntimeException ex) {
+            result = new CommandFailedException(ex.toString());
+        }
+        return new RciMessage(request.id, result);
+    }
+
+    // YA - the wire carries no type argument; a body that is no command, or a command of another
+    // YA - T, throws ClassCastException in execute() and is answered like any failing command
+    @SuppressWarnings("unchecked")
+    private Command<T> command(Serializable body) {
+        return (Command<T>) body;
     }
 
     @Override
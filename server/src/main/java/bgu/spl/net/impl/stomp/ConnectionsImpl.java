@@ -1,24 +1,38 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.ChannelMessage;
+import bgu.spl.net.api.EncodableMessage;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-// YA implementation of Connections interface 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+// YA implementation of Connections interface
 // YA manages active connections and channel subscriptions
 // YA supports sending messages to specific clients or broadcasting to channels
 public class ConnectionsImpl<T> implements Connections<T> {
-    
+
     // YA maps connectionId -> handler (send to specific client)
     private final Map<Integer, ConnectionHandler<T>> handlersById = new ConcurrentHashMap<>();
 
-    // YA maps channel -> (connectionId -> subscriptionId)
-    private final Map<String, Map<Integer, Integer>> channelSubs = new ConcurrentHashMap<>();
+    // YA channel names are interned to ids, a channel is looked up by the destination bytes of the frame
+    private final DestinationRegistry destinations = new DestinationRegistry();
+
+    // YA channel id -> its subscriptions, null if the channel has none
+    // YA slots are only set (and the array only grown) while holding channelsLock, readers take no lock
+    private volatile AtomicReferenceArray<Channel<T>> channels = new AtomicReferenceArray<>(64);
+    private final Object channelsLock = new Object();
+
+    // YA reverse map: connectionId -> subscribed channel ids
+    // YA a small array replaced on every change (clients have a few subscriptions), no entry until the first one
+    private final Map<Integer, int[]> channelsByConnection = new ConcurrentHashMap<>();
 
-    // YA reverse map: connectionId -> subscribed channels
-    private final Map<Integer, Set<String>> channelsByConnection = new ConcurrentHashMap<>();
+    // YA running game summaries are kept with their channel, only when -Dstomp.summaries=true
+    private final boolean summariesEnabled = Boolean.getBoolean("stomp.summaries");
 
     @Override
     public boolean send(int connectionId, T msg) {
@@ -30,15 +44,40 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return true;
     }
 
+    @Override
+    public boolean send(int connectionId, EncodableMessage msg) {
+        // YA same as above, the handler encodes msg straight into its write buffer
+        ConnectionHandler<T> handler = handlersById.get(connectionId);
+        if (handler == null)
+            return false;
+        handler.send(msg);
+        return true;
+    }
+
     @Override
     public void send(String channel, T msg) {
         // YA broadcast message to all subscribers of a channel
-        Map<Integer, Integer> subs = channelSubs.get(channel);
-        if (subs == null)
+        Channel<T> ch = channel(destinations.lookup(channel, 0, channel.length()));
+        if (ch == null)
             return;
 
-        for (Integer connId : subs.keySet()) { // YA send to each subscriber by loop of connectionId
-            send(connId, msg);
+        for (Subscription<T> sub : ch.subscribers()) { // YA send to each subscriber
+            sub.handler.send(msg);
+        }
+    }
+
+    @Override
+    public void sendToChannel(int channelId, ChannelMessage msg) {
+        // YA broadcast, encoding the same message object once per subscriber
+        // YA the subscribers are a plain array and the handler is kept with the subscription,
+        // YA so the fan-out allocates nothing
+        Channel<T> ch = channel(channelId);
+        if (ch == null)
+            return;
+
+        for (Subscription<T> sub : ch.subscribers()) {
+            msg.prepare(sub.subscriptionId);
+            sub.handler.send(msg);
         }
     }
 
@@ -48,67 +87,273 @@ public class ConnectionsImpl<T> implements Connections<T> {
         ConnectionHandler<T> handler = handlersById.remove(connectionId);
 
         // YA remove client from all subscribed channels
-        //YA if after remove the channel has no subscribers, remove the channel 
-        Set<String> channels = channelsByConnection.remove(connectionId);
-        if (channels != null) { // YA for each subscribed channel
-            for (String channel : channels) {
-                Map<Integer, Integer> subs = channelSubs.get(channel);
-                if (subs != null) {
-                    subs.remove(connectionId);
-                    if (subs.isEmpty())
-                        channelSubs.remove(channel);
-                }
+        //YA if after remove the channel has no subscribers, remove the channel
+        int[] subscribed = channelsByConnection.remove(connectionId);
+        if (subscribed != null) { // YA for each subscribed channel
+            for (int channelId : subscribed) {
+                removeSubscription(connectionId, channelId);
             }
         }
 
-        // YA close socket connection
+        // YA close socket connection, after the frames sent before disconnecting
         if (handler != null) {
             try {
-                handler.close();
+                handler.closeAfterFlush();
             } catch (Exception ignored) {}
         }
     }
 
+    @Override
+    public void heartbeat(int connectionId, long outgoingMillis, long incomingMillis) {
+        ConnectionHandler<T> handler = handlersById.get(connectionId);
+        if (handler != null)
+            handler.heartbeat(outgoingMillis, incomingMillis);
+    }
+
+    @Override
+    public void pauseReads(int connectionId, long millis) {
+        ConnectionHandler<T> handler = handlersById.get(connectionId);
+        if (handler != null)
+            handler.pauseReads(millis);
+    }
+
+    @Override
+    public int channelId(String frame, int start, int end) {
+        return destinations.lookup(frame, start, end);
+    }
+
+    @Override
+    public int channelId(ByteBuffer data, int start, int end) {
+        return destinations.lookup(data, start, end);
+    }
+
+    @Override
+    public String channelName(int channelId) {
+        return destinations.name(channelId);
+    }
+
     // -------- helper methods --------
 
     // YA register new active connection
     public void register(int connectionId, ConnectionHandler<T> handler) {
         handlersById.put(connectionId, handler);
-        channelsByConnection.putIfAbsent(connectionId, ConcurrentHashMap.newKeySet());// YA put in the map only if absent with atomic operation
     }
 
-    // YA subscribe client to channel with subscriptionId
-    public void subscribe(int connectionId, String channel, int subscriptionId) {
-        channelSubs.computeIfAbsent(channel, c -> new ConcurrentHashMap<>())// YA in STOMP we allow to subscribe to non-existing channels and create them
-                   .put(connectionId, subscriptionId);
+    // YA subscribe client to the channel named frame[start, end) with subscriptionId
+    // YA returns the channel id, -1 if the client is already disconnected
+    public int subscribe(int connectionId, String frame, int start, int end, int subscriptionId) {
+        ConnectionHandler<T> handler = handlersById.get(connectionId);
+        if (handler == null)
+            return -1; // YA already disconnected
+
+        Subscription<T> sub = new Subscription<>(connectionId, subscriptionId, handler);
+        int channelId;
+        while (true) {
+            channelId = destinations.lookup(frame, start, end);
+            Channel<T> ch = channel(channelId);
+            if (ch == null || ch.isClosed()) {
+                // YA in STOMP we allow to subscribe to non-existing channels and create them
+                synchronized (channelsLock) {
+                    channelId = destinations.intern(frame, start, end);
+                    ch = channel(channelId);
+                    if (ch == null || ch.isClosed()) {
+                        ch = new Channel<>(destinations.name(channelId));
+                        setChannel(channelId, ch);
+                    }
+                }
+            }
+            if (ch.put(connectionId, sub, frame, start, end))
+                break;
+            // YA the channel emptied and closed meanwhile, or its id was released and handed to
+            // YA another destination between the lookup and the put, try again
+        }
 
-        channelsByConnection.get(connectionId).add(channel);//YA het the set of channels of client and add the new channel
+        final int added = channelId;
+        channelsByConnection.compute(connectionId, (id, subscribed) -> { // YA add the new channel to the client's channels
+            if (subscribed == null)
+                return new int[]{added};
+            for (int channel : subscribed) {
+                if (channel == added)
+                    return subscribed;
+            }
+            int[] grown = Arrays.copyOf(subscribed, subscribed.length + 1);
+            grown[subscribed.length] = added;
+            return grown;
+        });
+        return channelId;
     }
 
     // YA unsubscribe client from channel
-    public void unsubscribeFromChannel(int connectionId, String channel) {
-        Map<Integer, Integer> subs = channelSubs.get(channel);
-        if (subs != null) {
-            subs.remove(connectionId);// YA remove client from channel
-            if (subs.isEmpty())// YA if no more subscribers, remove channel
-                channelSubs.remove(channel);
+    public void unsubscribeFromChannel(int connectionId, int channelId) {
+        removeSubscription(connectionId, channelId);
+        channelsByConnection.computeIfPresent(connectionId, (id, subscribed) -> { //YA remove channel from client's channels
+            for (int i = 0; i < subscribed.length; i++) {
+                if (subscribed[i] == channelId) {
+                    if (subscribed.length == 1)
+                        return null; // YA last one, drop the entry
+                    int[] shrunk = new int[subscribed.length - 1];
+                    System.arraycopy(subscribed, 0, shrunk, 0, i);
+                    System.arraycopy(subscribed, i + 1, shrunk, i, shrunk.length - i);
+                    return shrunk;
+                }
+            }
+            return subscribed;
+        });
+    }
+
+    // YA number of subscribers of a channel, 0 if there is no such channel
+    @Override
+    public int subscriberCount(int channelId) {
+        Channel<T> ch = channel(channelId);
+        return ch == null ? 0 : ch.subscribers().length;
+    }
+
+    @Override
+    public boolean summariesEnabled() {
+        return summariesEnabled;
+    }
+
+    // YA fold an event sent to the channel into its summary
+    @Override
+    public void aggregate(int channelId, String frame, int bodyStart, int bodyEnd) {
+        if (!summariesEnabled)
+            return;
+        Channel<T> ch = channel(channelId);
+        if (ch != null)
+            ch.summary().update(frame, bodyStart, bodyEnd);
+    }
+
+    // YA get the current summary of a reporter in a channel
+    @Override
+    public long getSummary(int channelId, String reporter, StringBuilder out) {
+        Channel<T> ch = channel(channelId);
+        GameSummary summary = ch == null ? null : ch.summary;
+        return summary == null ? -1 : summary.render(reporter, out);
+    }
+
+    // YA remove one subscription, an empty channel is dropped together with its summary and its id
+    private void removeSubscription(int connectionId, int channelId) {
+        Channel<T> ch = channel(channelId);
+        if (ch == null || !ch.remove(connectionId))
+            return;
+        synchronized (channelsLock) {
+            // YA a new subscriber may have replaced the closed channel already, then the id stays in use
+            if (channel(channelId) == ch) {
+                setChannel(channelId, null);
+                destinations.release(channelId);
+            }
         }
-        channelsByConnection.get(connectionId).remove(channel);//YA remove channel from client's set
     }
 
-    // YA get subscription id of client in channel
-    public Integer getSubscriptionId(int connectionId, String channel) {
-        Map<Integer, Integer> subs = channelSubs.get(channel);// YA get subscribers of channel
-        return subs == null ? null : subs.get(connectionId);// YA return subscriptionId or null if not subscribed
+    // YA get a point-in-time copy of (connectionId -> subscriptionId) for a channel
+    // YA lets a batch of messages be routed with a single traversal of the subscribers
+    @Override
+    public Map<Integer, Integer> getSubscriptionsSnapshot(int channelId) {
+        Channel<T> ch = channel(channelId);
+        if (ch == null)
+            return java.util.Collections.emptyMap();
+        Map<Integer, Integer> snapshot = new HashMap<>();
+        for (Subscription<T> sub : ch.subscribers())
+            snapshot.put(sub.connectionId, sub.subscriptionId);
+        return snapshot;
     }
 
-// YA get all subscribers of a channel
-public Set<Integer> getSubscribers(String channel) {
-    Map<Integer, Integer> subs = channelSubs.get(channel);
-    if (subs == null)
-        return java.util.Collections.emptySet(); // Java 8 safe
-    return subs.keySet();
-}
+    private Channel<T> channel(int channelId) {
+        AtomicReferenceArray<Channel<T>> current = channels;
+        return channelId >= 0 && channelId < current.length() ? current.get(channelId) : null;
+    }
+
+    // YA holding channelsLock
+    private void setChannel(int channelId, Channel<T> ch) {
+        AtomicReferenceArray<Channel<T>> current = channels;
+        if (channelId >= current.length()) {
+            AtomicReferenceArray<Channel<T>> grown = new AtomicReferenceArray<>(Math.max(channelId + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++)
+                grown.set(i, current.get(i));
+            channels = current = grown;
+        }
+        current.set(channelId, ch);
+    }
+
+    // YA a client's subscription to a channel, keeps the handler so fan-out needs no lookups
+    private static class Subscription<T> {
+        final int connectionId;
+        final int subscriptionId;
+        final ConnectionHandler<T> handler;
 
+        Subscription(int connectionId, int subscriptionId, ConnectionHandler<T> handler) {
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+            this.handler = handler;
+        }
+    }
+
+    // YA subscriptions of one channel
+    // YA fan-out iterates an array snapshot that is rebuilt lazily after the subscriptions change
+    // YA once its last subscriber left the channel is closed for good, its id is released
+    private static class Channel<T> {
+        @SuppressWarnings("rawtypes")
+        private static final Subscription[] EMPTY = new Subscription[0];
+
+        private final String name;
+        private final Map<Integer, Subscription<T>> byConnection = new HashMap<>(); // YA guarded by this
+        private volatile Subscription<T>[] snapshot = null;
+        private boolean closed = false;
+        volatile GameSummary summary = null;
+
+        Channel(String name) {
+            this.name = name;
+        }
+
+        // YA false if the channel is closed or is not the one named frame[start, end), the caller
+        // YA has to look it up again; while the channel is open its id cannot be released, so
+        // YA checking the name under the lock is enough
+        synchronized boolean put(int connectionId, Subscription<T> sub, String frame, int start, int end) {
+            if (closed || name.length() != end - start || !frame.regionMatches(start, name, 0, end - start))
+                return false;
+            byConnection.put(connectionId, sub);
+            snapshot = null;
+            return true;
+        }
+
+        // YA true if this removed the last subscriber and closed the channel
+        synchronized boolean remove(int connectionId) {
+            if (byConnection.remove(connectionId) == null)
+                return false;
+            snapshot = null;
+            closed = byConnection.isEmpty();
+            return closed;
+        }
 
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        GameSummary summary() {
+            GameSummary s = summary;
+            if (s == null) {
+                synchronized (this) {
+                    s = summary;
+                    if (s == null)
+                        summary = s = new GameSummary();
+                }
+            }
+            return s;
+        }
+
+        @SuppressWarnings("unchecked")
+        Subscription<T>[] subscribers() {
+            Subscription<T>[] subs = snapshot;
+            if (subs == null) {
+                synchronized (this) {
+                    subs = snapshot;
+                    if (subs == null) {
+                        subs = byConnection.values().toArray((Subscription<T>[]) EMPTY);
+                        snapshot = subs;
+                    }
+                }
+            }
+            return subs;
+        }
+    }
 }
@@ -0,0 +1,257 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * YA - interns destination names to small int ids
+ * YA - a destination is looked up straight from the received frame (or its bytes), so no String
+ * YA - is built for it; the name is only copied once, when it is first interned
+ * YA - ids are dense and reused after release(), so routing tables can be plain arrays
+ * YA - lookups are optimistic reads that take no lock unless a writer got in the way,
+ * YA - intern() and release() take the write lock
+ */
+public class DestinationRegistry {
+
+    public static final int NONE = -1;      // YA - not interned
+    public static final int NOT_ASCII = -2; // YA - bytes that are not plain ASCII are only looked up as strings
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // YA - immutable, so a reader racing a writer never sees a half built entry
+    private static final class Entry {
+        final String name;
+        final int hash;
+        final int id;
+
+        Entry(String name, int hash, int id) {
+            this.name = name;
+            this.hash = hash;
+            this.id = id;
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+
+    // YA - open addressing with linear probing, at most half full
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // YA - id -> name, null for a free id
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int nextId = 0;
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    /**
+     * YA - id of the destination named s[start, end)
+     * @return the id, or NONE if it is not interned
+     */
+    public int lookup(String s, int start, int end) {
+        int hash = hash(s, start, end);
+        long stamp = lock.tryOptimisticRead();
+        int id = find(s, start, end, hash);
+        if (lock.validate(stamp))
+            return id;
+
+        stamp = lock.readLock();
+        try {
+            return find(s, start, end, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * YA - id of the destination whose name is the bytes data[start, end), data is not moved
+     * @return the id, NONE if it is not interned, NOT_ASCII if the bytes are not plain ASCII
+     */
+    public int lookup(ByteBuffer data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data.get(i);
+            if (b < 0)
+                return NOT_ASCII;
+            hash = 31 * hash + b;
+        }
+        hash = spread(hash);
+
+        long stamp = lock.tryOptimisticRead();
+        int id = find(data, start, end, hash);
+        if (lock.validate(stamp))
+            return id;
+
+        stamp = lock.readLock();
+        try {
+            return find(data, start, end, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * YA - id of the destination named s[start, end), interned with a new id if needed
+     */
+    public int intern(String s, int start, int end) {
+        int hash = hash(s, start, end);
+        long stamp = lock.writeLock();
+        try {
+            int id = find(s, start, end, hash);
+            if (id != NONE)
+                return id;
+
+            id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id == names.length)
+                names = Arrays.copyOf(names, names.length * 2);
+            String name = s.substring(start, end);
+            names[id] = name;
+
+            if (++size * 2 > table.length)
+                table = rehash(table, table.length * 2);
+            insert(table, new Entry(name, hash, id));
+            return id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * YA - forget a destination, its id may be handed out again by intern()
+     */
+    public void release(int id) {
+        long stamp = lock.writeLock();
+        try {
+            if (id < 0 || id >= nextId || names[id] == null)
+                return;
+            String name = names[id];
+            names[id] = null;
+            remove(name, hash(name, 0, name.length()));
+            size--;
+
+            if (freeCount == freeIds.length)
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            freeIds[freeCount++] = id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * YA - the interned name of an id, null if the id is free
+     */
+    public String name(int id) {
+        long stamp = lock.tryOptimisticRead();
+        String[] current = names;
+        String name = id >= 0 && id < current.length ? current[id] : null;
+        if (lock.validate(stamp))
+            return name;
+
+        stamp = lock.readLock();
+        try {
+            return id >= 0 && id < names.length ? names[id] : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // YA - number of interned destinations
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /* ===================== table ===================== */
+
+    // YA - probes are bounded by the table length, an optimistic reader may see a table mid change
+    private int find(String s, int start, int end, int hash) {
+        Entry[] current = table;
+        int mask = current.length - 1;
+        int length = end - start;
+        for (int i = hash & mask, probes = 0; probes < current.length; i = (i + 1) & mask, probes++) {
+            Entry e = current[i];
+            if (e == null)
+                return NONE;
+            if (e.hash == hash && e.name.length() == length && s.regionMatches(start, e.name, 0, length))
+                return e.id;
+        }
+        return NONE;
+    }
+
+    private int find(ByteBuffer data, int start, int end, int hash) {
+        Entry[] current = table;
+        int mask = current.length - 1;
+        int length = end - start;
+        for (int i = hash & mask, probes = 0; probes < current.length; i = (i + 1) & mask, probes++) {
+            Entry e = current[i];
+            if (e == null)
+                return NONE;
+            if (e.hash == hash && e.name.length() == length && sameChars(data, start, e.name))
+                return e.id;
+        }
+        return NONE;
+    }
+
+    private static boolean sameChars(ByteBuffer data, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (data.get(start + i) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static void insert(Entry[] into, Entry entry) {
+        int mask = into.length - 1;
+        int i = entry.hash & mask;
+        while (into[i] != null)
+            i = (i + 1) & mask;
+        into[i] = entry;
+    }
+
+    private static Entry[] rehash(Entry[] from, int capacity) {
+        Entry[] to = new Entry[capacity];
+        for (Entry e : from) {
+            if (e != null)
+                insert(to, e);
+        }
+        return to;
+    }
+
+    // YA - backward shift deletion, so probe chains stay unbroken without tombstones
+    private void remove(String name, int hash) {
+        Entry[] current = table;
+        int mask = current.length - 1;
+        int i = hash & mask;
+        while (current[i] != null && !(current[i].hash == hash && current[i].name.equals(name)))
+            i = (i + 1) & mask;
+        if (current[i] == null)
+            return;
+
+        int hole = i;
+        for (int j = (i + 1) & mask; current[j] != null; j = (j + 1) & mask) {
+            int home = current[j].hash & mask;
+            // YA - move the entry back unless its home slot lies cyclically in (hole, j]
+            boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!stays) {
+                current[hole] = current[j];
+                hole = j;
+            }
+        }
+        current[hole] = null;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + s.charAt(i);
+        return spread(hash);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
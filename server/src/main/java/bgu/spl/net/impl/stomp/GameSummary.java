@@ -0,0 +1,209 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * YA - running summary of one game channel, kept up to date as events are sent
+ * YA - state is per reporter (the "user:" line of the event) and bounded in size:
+ * YA - at most 64 reporters and 64 stat keys per section, later ones are not kept, and the
+ * YA - latest 256 events of each reporter; render tells how many earlier events it left out
+ */
+public class GameSummary {
+
+    // YA - bounds on the state kept for a channel
+    private static final int MAX_REPORTERS = 64;
+    private static final int MAX_STATS_PER_SECTION = 64;
+    public static final int MAX_EVENTS_PER_REPORTER = 256;
+
+    // YA - reporter -> summary of the events that reporter sent
+    private final Map<String, ReporterSummary> reporters = new ConcurrentHashMap<>();
+
+    /**
+     * YA - fold a single event into the summary, its body is frame[start, end)
+     */
+    public void update(String frame, int start, int end) {
+        Event event = Event.parse(frame, start, end);
+        if (event.user == null)
+            return; // YA - not a game event, nothing to aggregate
+
+        ReporterSummary reporter = reporters.get(event.user);
+        if (reporter == null) {
+            if (reporters.size() >= MAX_REPORTERS)
+                return;
+            reporter = reporters.computeIfAbsent(event.user, u -> new ReporterSummary());
+        }
+        reporter.add(event);
+    }
+
+    /**
+     * YA - render the summary of a reporter in the same layout the client writes to its summary file
+     * @return the number of the reporter's events left out of out (over MAX_EVENTS_PER_REPORTER),
+     * YA - -1 if the reporter sent nothing to this channel
+     */
+    public long render(String user, StringBuilder out) {
+        ReporterSummary reporter = reporters.get(user);
+        return reporter == null ? -1 : reporter.render(out);
+    }
+
+    // YA - summary of one reporter in one game
+    private static class ReporterSummary {
+        private String teamA;
+        private String teamB;
+        private final Map<String, Stat> general = new TreeMap<>();
+        private final Map<String, Stat> teamAStats = new TreeMap<>();
+        private final Map<String, Stat> teamBStats = new TreeMap<>();
+
+        // YA - ring of the most recent events
+        private final Event[] events = new Event[MAX_EVENTS_PER_REPORTER];
+        private int next = 0;
+        private long eventCount = 0;
+
+        synchronized void add(Event event) {
+            if (teamA == null) {
+                teamA = event.teamA;
+                teamB = event.teamB;
+            }
+            putAll(general, event.general, event.time);
+            putAll(teamAStats, event.teamAUpdates, event.time);
+            putAll(teamBStats, event.teamBUpdates, event.time);
+
+            events[next] = event;
+            next = (next + 1) % events.length;
+            eventCount++;
+        }
+
+        private void putAll(Map<String, Stat> stats, List<String[]> updates, int time) {
+            for (String[] update : updates) {
+                Stat stat = stats.get(update[0]);
+                if (stat == null) {
+                    if (stats.size() < MAX_STATS_PER_SECTION)
+                        stats.put(update[0], new Stat(update[1], time));
+                } else if (time >= stat.time) {
+                    // YA - the latest event in game time wins, as in the client's summary
+                    stat.value = update[1];
+                    stat.time = time;
+                }
+            }
+        }
+
+        synchronized long render(StringBuilder out) {
+            int count = (int) Math.min(eventCount, events.length);
+            Event[] ordered = new Event[count];
+            for (int i = 0; i < count; i++)
+                ordered[i] = events[(next - count + i + events.length) % events.length];
+            Arrays.sort(ordered, Comparator.comparingInt(e -> e.time));
+
+            out.append(teamA).append(" vs ").append(teamB).append("\n");
+            out.append("Game stats:\nGeneral stats:\n");
+            appendStats(out, general);
+            out.append(teamA).append(" stats:\n");
+            appendStats(out, teamAStats);
+            out.append(teamB).append(" stats:\n");
+            appendStats(out, teamBStats);
+
+            out.append("\nGame event reports:\n");
+            for (Event e : ordered) {
+                out.append(e.time).append(" - ").append(e.name).append(":\n\n");
+                out.append(e.description).append("\n\n");
+            }
+            return eventCount - count;
+        }
+
+        private void appendStats(StringBuilder out, Map<String, Stat> stats) {
+            for (Map.Entry<String, Stat> stat : stats.entrySet())
+                out.append(stat.getKey()).append(": ").append(stat.getValue().value).append("\n");
+        }
+    }
+
+    // YA - last value of a stat and the game time it was reported at
+    private static class Stat {
+        String value;
+        int time;
+
+        Stat(String value, int time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    // YA - an event as reported by the client's "report" command
+    private static class Event {
+        String user;
+        String teamA;
+        String teamB;
+        String name;
+        int time;
+        final List<String[]> general = new ArrayList<>();
+        final List<String[]> teamAUpdates = new ArrayList<>();
+        final List<String[]> teamBUpdates = new ArrayList<>();
+        String description = "";
+
+        /**
+         * YA - the lines are matched in place in the frame, only the values kept are copied out
+         */
+        static Event parse(String frame, int start, int end) {
+            Event event = new Event();
+            List<String[]> section = null;
+
+            for (int line = start; line < end; ) {
+                int lineEnd = frame.indexOf('\n', line);
+                if (lineEnd == -1 || lineEnd > end)
+                    lineEnd = end;
+
+                if (startsWith(frame, line, lineEnd, "user: ")) {
+                    event.user = frame.substring(line + "user: ".length(), lineEnd);
+                } else if (startsWith(frame, line, lineEnd, "team a: ")) {
+                    event.teamA = frame.substring(line + "team a: ".length(), lineEnd);
+                } else if (startsWith(frame, line, lineEnd, "team b: ")) {
+                    event.teamB = frame.substring(line + "team b: ".length(), lineEnd);
+                } else if (startsWith(frame, line, lineEnd, "event name: ")) {
+                    event.name = frame.substring(line + "event name: ".length(), lineEnd);
+                } else if (startsWith(frame, line, lineEnd, "time: ")) {
+                    try {
+                        event.time = Integer.parseInt(frame.substring(line + "time: ".length(), lineEnd).trim());
+                    } catch (NumberFormatException ignored) {}
+                } else if (startsWith(frame, line, lineEnd, "general game updates:")) {
+                    section = event.general;
+                } else if (startsWith(frame, line, lineEnd, "team a updates:")) {
+                    section = event.teamAUpdates;
+                } else if (startsWith(frame, line, lineEnd, "team b updates:")) {
+                    section = event.teamBUpdates;
+                } else if (startsWith(frame, line, lineEnd, "description:")) {
+                    event.description = description(frame, lineEnd, end);
+                    break;
+                } else if (section != null && startsWith(frame, line, lineEnd, "    ")) {
+                    // YA - the first ": " of the line, not searched past it
+                    int colon = line + 4;
+                    while (colon + 1 < lineEnd && (frame.charAt(colon) != ':' || frame.charAt(colon + 1) != ' '))
+                        colon++;
+                    if (colon + 1 < lineEnd)
+                        section.add(new String[]{frame.substring(line + 4, colon), frame.substring(colon + 2, lineEnd)});
+                }
+                line = lineEnd + 1;
+            }
+            return event;
+        }
+
+        // YA - the lines after the "description:" line, which ends at lineEnd, each ending with a
+        // YA - new line; empty lines at the end are dropped
+        private static String description(String frame, int lineEnd, int end) {
+            int last = end;
+            while (last > lineEnd && frame.charAt(last - 1) == '\n')
+                last--;
+            if (last <= lineEnd + 1)
+                return "";
+            // YA - the new line after the last line is in the frame unless the body ends there
+            return last < end ? frame.substring(lineEnd + 1, last + 1) : frame.substring(lineEnd + 1, last) + "\n";
+        }
+
+        private static boolean startsWith(String frame, int line, int lineEnd, String prefix) {
+            return lineEnd - line >= prefix.length() && frame.startsWith(prefix, line);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YA - publish rate limits for SEND, checked before anything is routed
+ * YA - every scope has a messages/sec and a bytes/sec token bucket, a SEND has to fit in the buckets
+ * YA - of its connection, of its login (kept across reconnects) and of its destination
+ * YA - a bucket is refilled from the clock when it is used, there is no timer and no refill thread
+ *
+ * YA - configured with system properties (rates per second, 0 = no limit, all off by default):
+ * YA -   stomp.limit.connection.messages   stomp.limit.connection.bytes
+ * YA -   stomp.limit.login.messages        stomp.limit.login.bytes
+ * YA -   stomp.limit.destination.messages  stomp.limit.destination.bytes
+ * YA -   stomp.limit.burstSeconds   a bucket holds this many seconds of its rate (default 1)
+ * YA -   stomp.limit.policy         what happens to a SEND over a limit (default delay):
+ * YA -                                delay  it is routed, and the connection is not read until it is within its limits again
+ * YA -                                drop   it is discarded (a requested receipt is still sent, the frame was processed)
+ * YA -                                error  ERROR and disconnect
+ * YA -   stomp.limit.reportSeconds  print the counters every N seconds (default 0, off)
+ */
+public class PublishLimiter {
+
+    public enum Policy {
+        DELAY, DROP, ERROR
+    }
+
+    // YA - results of admit(), anything above ADMITTED is how long (ns) to stop reading the connection
+    public static final long ADMITTED = 0;
+    public static final long REJECTED = -1;
+
+    // YA - idle buckets are full, so forgetting them changes nothing; looked for when a map doubled
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    private static final PublishLimiter SHARED = new PublishLimiter(
+            rates("connection"), rates("login"), rates("destination"),
+            Double.parseDouble(System.getProperty("stomp.limit.burstSeconds", "1")),
+            Policy.valueOf(System.getProperty("stomp.limit.policy", "delay").toUpperCase()));
+
+    static {
+        long period = Long.getLong("stomp.limit.reportSeconds", 0);
+        if (period > 0 && SHARED.isEnabled()) {
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(period * 1000);
+                        System.out.println(SHARED);
+                    }
+                } catch (InterruptedException ignored) {}
+            }, "publish-limiter-report");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    private final long[] connectionRates;
+    private final long[] loginRates;
+    private final long[] destinationRates;
+    private final double burstSeconds;
+    private final Policy policy;
+
+    private final Map<String, Buckets> logins = new ConcurrentHashMap<>();
+    private final Map<String, Buckets> destinations = new ConcurrentHashMap<>();
+    private volatile int loginSweepSize = MIN_SWEEP_SIZE;
+    private volatile int destinationSweepSize = MIN_SWEEP_SIZE;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong connectionHits = new AtomicLong();
+    private final AtomicLong loginHits = new AtomicLong();
+    private final AtomicLong destinationHits = new AtomicLong();
+
+    /**
+     * @param connectionRates  {messages/sec, bytes/sec} per connection, 0 = no limit
+     * @param loginRates       {messages/sec, bytes/sec} per login
+     * @param destinationRates {messages/sec, bytes/sec} per destination
+     */
+    public PublishLimiter(long[] connectionRates, long[] loginRates, long[] destinationRates,
+                          double burstSeconds, Policy policy) {
+        this.connectionRates = connectionRates;
+        this.loginRates = loginRates;
+        this.destinationRates = destinationRates;
+        this.burstSeconds = burstSeconds;
+        this.policy = policy;
+    }
+
+    public static PublishLimiter shared() {
+        return SHARED;
+    }
+
+    public boolean isEnabled() {
+        return limited(connectionRates) || limited(loginRates) || limited(destinationRates);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // YA - buckets for a new connection, null if connections are not limited
+    public Buckets newConnectionBuckets() {
+        return newBuckets(connectionRates);
+    }
+
+    /**
+     * YA - take a SEND of the given size out of every bucket it falls under
+     * YA - under delay the SEND is always taken, possibly running the buckets into debt;
+     * YA - under drop and error nothing is taken from any bucket if one of them is short
+     * YA - (concurrent SENDs to one destination may overshoot its bucket by a message or so each)
+     * @param connection the connection's buckets, null if not limited
+     * @return ADMITTED, REJECTED, or the nanoseconds the connection should not be read
+     */
+    public long admit(Buckets connection, String login, String destination, int messages, int bytes) {
+        long now = System.nanoTime();
+        Buckets user = login == null ? null : bucketsOf(logins, login, loginRates, true, now);
+        Buckets channel = bucketsOf(destinations, destination, destinationRates, false, now);
+
+        long connectionDeficit = connection == null ? 0 : connection.deficit(messages, bytes, now);
+        long userDeficit = user == null ? 0 : user.deficit(messages, bytes, now);
+        long channelDeficit = channel == null ? 0 : channel.deficit(messages, bytes, now);
+        long deficit = Math.max(connectionDeficit, Math.max(userDeficit, channelDeficit));
+
+        if (deficit > 0) {
+            if (connectionDeficit > 0) connectionHits.incrementAndGet();
+            if (userDeficit > 0) loginHits.incrementAndGet();
+            if (channelDeficit > 0) destinationHits.incrementAndGet();
+            if (policy != Policy.DELAY) {
+                rejected.incrementAndGet();
+                return REJECTED;
+            }
+        }
+
+        if (connection != null) connection.take(messages, bytes, now);
+        if (user != null) user.take(messages, bytes, now);
+        if (channel != null) channel.take(messages, bytes, now);
+
+        if (deficit > 0) {
+            delayed.incrementAndGet();
+            return deficit;
+        }
+        admitted.incrementAndGet();
+        return ADMITTED;
+    }
+
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    // YA - SENDs over the limit of each scope (one SEND may count in several)
+    public long getConnectionLimitHits() {
+        return connectionHits.get();
+    }
+
+    public long getLoginLimitHits() {
+        return loginHits.get();
+    }
+
+    public long getDestinationLimitHits() {
+        return destinationHits.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("publish limits (%s): admitted=%d delayed=%d rejected=%d over connection=%d login=%d destination=%d",
+                policy.name().toLowerCase(), getAdmittedCount(), getDelayedCount(), getRejectedCount(),
+                getConnectionLimitHits(), getLoginLimitHits(), getDestinationLimitHits());
+    }
+
+    private Buckets bucketsOf(Map<String, Buckets> map, String key, long[] rates, boolean isLogin, long now) {
+        if (!limited(rates))
+            return null;
+        Buckets buckets = map.get(key);
+        if (buckets != null)
+            return buckets;
+
+        buckets = map.computeIfAbsent(key, k -> newBuckets(rates));
+        int sweepSize = isLogin ? loginSweepSize : destinationSweepSize;
+        if (map.size() > sweepSize) {
+            sweep(map, now);
+            int next = Math.max(MIN_SWEEP_SIZE, map.size() * 2);
+            if (isLogin) loginSweepSize = next;
+            else destinationSweepSize = next;
+        }
+        return buckets;
+    }
+
+    // YA - forget full buckets, a new one would be the same
+    private static void sweep(Map<String, Buckets> map, long now) {
+        for (Iterator<Buckets> it = map.values().iterator(); it.hasNext(); ) {
+            if (it.next().isFull(now))
+                it.remove();
+        }
+    }
+
+    private Buckets newBuckets(long[] rates) {
+        if (!limited(rates))
+            return null;
+        return new Buckets(
+                rates[0] > 0 ? new TokenBucket(rates[0], burstSeconds) : null,
+                rates[1] > 0 ? new TokenBucket(rates[1], burstSeconds) : null);
+    }
+
+    private static boolean limited(long[] rates) {
+        return rates[0] > 0 || rates[1] > 0;
+    }
+
+    private static long[] rates(String scope) {
+        return new long[]{
+                Long.getLong("stomp.limit." + scope + ".messages", 0),
+                Long.getLong("stomp.limit." + scope + ".bytes", 0)
+        };
+    }
+
+    /**
+     * YA - the messages and bytes buckets of one scope, checked and taken together
+     */
+    public static final class Buckets {
+        private final TokenBucket messages; // YA - null = no limit
+        private final TokenBucket bytes;
+
+        Buckets(TokenBucket messages, TokenBucket bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+
+        // YA - how far (ns) taking the SEND would run the buckets into debt, 0 if it fits
+        synchronized long deficit(int messageCount, int byteCount, long now) {
+            long deficit = messages == null ? 0 : messages.deficit(messageCount, now);
+            return bytes == null ? deficit : Math.max(deficit, bytes.deficit(byteCount, now));
+        }
+
+        synchronized void take(int messageCount, int byteCount, long now) {
+            if (messages != null) messages.take(messageCount, now);
+            if (bytes != null) bytes.take(byteCount, now);
+        }
+
+        synchronized boolean isFull(long now) {
+            return (messages == null || messages.isFull(now)) && (bytes == null || bytes.isFull(now));
+        }
+    }
+
+    /**
+     * YA - a token bucket kept as the time at which it is full again
+     * YA - the tokens it holds at time t are (burst - (fullAt - t)) / nanosPerToken, so refilling
+     * YA - is only comparing with the clock, and taking n tokens moves fullAt by n tokens' time
+     * YA - guarded by the owning Buckets
+     */
+    private static final class TokenBucket {
+        private final double nanosPerToken;
+        private final long burstNanos;
+        private long fullAt = Long.MIN_VALUE;
+
+        TokenBucket(long tokensPerSecond, double burstSeconds) {
+            this.nanosPerToken = 1e9 / tokensPerSecond;
+            this.burstNanos = (long) (burstSeconds * 1e9);
+        }
+
+        long deficit(long tokens, long now) {
+            long after = Math.max(fullAt, now) + (long) (tokens * nanosPerToken);
+            return Math.max(0, after - now - burstNanos);
+        }
+
+        void take(long tokens, long now) {
+            fullAt = Math.max(fullAt, now) + (long) (tokens * nanosPerToken);
+        }
+
+        boolean isFull(long now) {
+            return fullAt <= now;
+        }
+    }
+}
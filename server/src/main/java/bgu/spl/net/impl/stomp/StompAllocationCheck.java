@@ -0,0 +1,138 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * YA - allocation regression check of the SEND -> MESSAGE path
+ * YA - starts a reactor server in this JVM, one publisher and its subscribers log in and subscribe,
+ * YA - then the publisher streams SENDs and the bytes the server threads allocated (ThreadMXBean
+ * YA - per thread counters) are divided by the SENDs routed; the check fails (exit code 1) if the
+ * YA - steady state rounds go over the budget
+ *
+ * YA - what is left per SEND is the String the decoder builds of the frame (its size plus 40 bytes,
+ * YA - see StompMessageEncoderDecoder.popFrame) and the selector's key set (see Reactor.serve), the
+ * YA - routing itself allocates nothing; the default budget is for the frame below
+ *
+ * YA - usage: StompAllocationCheck [port] [subscribers] [budget bytes per SEND]
+ */
+public class StompAllocationCheck {
+
+    private static final int ROUNDS = 6;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int SENDS_PER_ROUND = 20000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7790;
+        int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double budget = args.length > 2 ? Double.parseDouble(args[2]) : 256;
+
+        Thread server = new Thread(() -> StompServer.main(new String[] {Integer.toString(port), "reactor"}), "check-server");
+        server.setDaemon(true);
+        server.start();
+
+        // YA - the threads of this tool, everything else belongs to the server
+        Set<Long> ours = new HashSet<>();
+        ours.add(Thread.currentThread().getId());
+        Socket[] sockets = new Socket[subscribers + 1];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = connect(port);
+            send(sockets[i], "CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:alloc-" + i + "\npasscode:alloc\n\n");
+            skipFrame(sockets[i].getInputStream());
+            send(sockets[i], "SUBSCRIBE\ndestination:/alloc\nid:" + i + "\nreceipt:1\n\n");
+            skipFrame(sockets[i].getInputStream());
+            ours.add(drainInBackground(sockets[i].getInputStream()).getId());
+        }
+
+        byte[] frame = ("SEND\ndestination:/alloc\n\nuser: alloc-0\nteam a: A\nteam b: B\nevent name: goal\n"
+                + "time: 10\ndescription:\nsome text here\n\0").getBytes(StandardCharsets.UTF_8);
+        OutputStream out = sockets[0].getOutputStream();
+        double worst = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = serverAllocatedBytes(ours);
+            for (int i = 0; i < SENDS_PER_ROUND; i++) {
+                out.write(frame);
+                // YA - paced, so the server never falls far behind and grows its buffers
+                if (i % 50 == 0) {
+                    out.flush();
+                    Thread.sleep(0, 100000);
+                }
+            }
+            out.flush();
+            Thread.sleep(700);
+            double perSend = (serverAllocatedBytes(ours) - before) / (double) SENDS_PER_ROUND;
+            System.out.printf("round %d: %.1f bytes per SEND%s%n", round, perSend, round < WARMUP_ROUNDS ? " (warm up)" : "");
+            if (round >= WARMUP_ROUNDS)
+                worst = Math.max(worst, perSend);
+        }
+
+        boolean ok = worst <= budget;
+        System.out.printf("frame=%d bytes subscribers=%d: worst %.1f bytes per SEND, budget %.0f: %s%n",
+                frame.length, subscribers + 1, worst, budget, ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static long serverAllocatedBytes(Set<Long> ours) {
+        long total = 0;
+        for (long id : THREADS.getAllThreadIds()) {
+            long allocated = THREADS.getThreadAllocatedBytes(id);
+            // YA - -1 for a thread that ended meanwhile
+            if (allocated > 0 && !ours.contains(id))
+                total += allocated;
+        }
+        return total;
+    }
+
+    private static Socket connect(int port) throws Exception {
+        // YA - the server thread may not be listening yet
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (ConnectException e) {
+                if (attempt == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void send(Socket socket, String frame) throws IOException {
+        socket.getOutputStream().write((frame + "\0").getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+    }
+
+    private static void skipFrame(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) > 0) {
+            // YA - only the end of the frame matters
+        }
+        if (b == -1)
+            throw new IOException("connection closed");
+    }
+
+    private static Thread drainInBackground(InputStream in) {
+        Thread t = new Thread(() -> {
+            byte[] chunk = new byte[1 << 16];
+            try {
+                while (in.read(chunk) >= 0) {
+                    // YA - the MESSAGEs are not looked at
+                }
+            } catch (IOException ignored) {}
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
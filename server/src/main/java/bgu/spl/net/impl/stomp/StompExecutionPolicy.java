@@ -0,0 +1,136 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ExecutionPolicy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * YA - execution policy for STOMP: input is run inline when every frame in it is cheap
+ * YA - cheap frames are SUBSCRIBE, UNSUBSCRIBE, BEGIN, ABORT and small SENDs to a channel
+ * YA - with few subscribers; CONNECT, DISCONNECT and SENDs with a file go to the database
+ * YA - and COMMIT or SUMMARY may do a lot of work, so those always go to the pool
+ *
+ * YA - configured with system properties:
+ * YA -   stomp.inline.maxBytes        most bytes processed inline at once (default 512)
+ * YA -   stomp.inline.maxSubscribers  most subscribers of a SEND's channel (default 4)
+ */
+public class StompExecutionPolicy implements ExecutionPolicy {
+
+    private static final byte[][] CHEAP_COMMANDS = {
+            bytes("SUBSCRIBE"), bytes("UNSUBSCRIBE"), bytes("BEGIN"), bytes("ABORT")
+    };
+    private static final byte[] SEND = bytes("SEND");
+    private static final byte[] DESTINATION = bytes("destination:");
+    private static final byte[] FILE = bytes("file:");
+    private static final byte[] CONTENT_TYPE = bytes("content-type:");
+
+    private final Connections<?> connections;
+    private final int maxBytes;
+    private final int maxSubscribers;
+
+    public StompExecutionPolicy(Connections<?> connections) {
+        this(connections,
+                Integer.getInteger("stomp.inline.maxBytes", 512),
+                Integer.getInteger("stomp.inline.maxSubscribers", 4));
+    }
+
+    public StompExecutionPolicy(Connections<?> connections, int maxBytes, int maxSubscribers) {
+        this.connections = connections;
+        this.maxBytes = maxBytes;
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    @Override
+    public boolean runInline(ByteBuffer data, int length) {
+        if (length == 0 || length > maxBytes)
+            return false;
+
+        int frameStart = 0;
+        while (frameStart < length) {
+            // YA - EOLs between frames
+            byte b = data.get(frameStart);
+            if (b == '\n' || b == '\r') {
+                frameStart++;
+                continue;
+            }
+
+            int frameEnd = indexOf(data, (byte) '\0', frameStart, length);
+            if (frameEnd == -1)
+                frameEnd = length; // YA - a partial frame is only buffered by the decoder
+            if (!isCheap(data, frameStart, frameEnd))
+                return false;
+            frameStart = frameEnd + 1;
+        }
+        return true;
+    }
+
+    private boolean isCheap(ByteBuffer data, int start, int end) {
+        int lineEnd = indexOf(data, (byte) '\n', start, end);
+        if (lineEnd == -1)
+            return false; // YA - the command is not known yet
+
+        for (byte[] command : CHEAP_COMMANDS) {
+            if (lineEquals(data, start, lineEnd, command))
+                return true;
+        }
+        if (!lineEquals(data, start, lineEnd, SEND))
+            return false;
+
+        // YA - SEND: walk the headers
+        int destinationStart = -1;
+        int destinationEnd = -1;
+        int pos = lineEnd + 1;
+        while (pos < end) {
+            lineEnd = indexOf(data, (byte) '\n', pos, end);
+            if (lineEnd == -1 || lineEnd == pos)
+                break; // YA - end of headers
+            if (startsWith(data, pos, lineEnd, FILE) || startsWith(data, pos, lineEnd, CONTENT_TYPE))
+                return false; // YA - database write or event batch
+            if (destinationStart == -1 && startsWith(data, pos, lineEnd, DESTINATION)) {
+                destinationStart = pos + DESTINATION.length;
+                destinationEnd = lineEnd;
+            }
+            pos = lineEnd + 1;
+        }
+        // YA - without a destination the SEND is either still partial or answered with an ERROR
+        return destinationStart == -1 || isSmallChannel(data, destinationStart, destinationEnd);
+    }
+
+    // YA - the channel is looked up by the destination bytes, nothing is decoded
+    private boolean isSmallChannel(ByteBuffer data, int start, int end) {
+        int channel = connections.channelId(data, start, end);
+        if (channel == DestinationRegistry.NOT_ASCII)
+            return false; // YA - only the protocol can tell
+        return connections.subscriberCount(channel) <= maxSubscribers;
+    }
+
+    private static int indexOf(ByteBuffer data, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data.get(i) == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean lineEquals(ByteBuffer data, int start, int end, byte[] text) {
+        if (end > start && data.get(end - 1) == '\r')
+            end--;
+        return end - start == text.length && startsWith(data, start, end, text);
+    }
+
+    private static boolean startsWith(ByteBuffer data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(start + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
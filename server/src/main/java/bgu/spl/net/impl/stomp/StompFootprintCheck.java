@@ -0,0 +1,145 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * YA - retained heap per idle connection, a regression check of the per connection state
+ * YA - a reactor server runs in a JVM of its own (so the clients' sockets are not counted), the
+ * YA - check opens connections that log in, subscribe once and then stay idle, and compares the
+ * YA - server's heap after a full GC with the heap before them; fails (exit code 1) over the budget
+ *
+ * YA - every connection logs in as a new user, so the user's own state (its Database entries, its
+ * YA - activity and, with -Dstomp.storage=journal, its journal rows) is counted too; about 900 bytes
+ * YA - of a connection are the JDK's socket, selection key and addresses
+ *
+ * YA - usage: StompFootprintCheck [connections] [budget bytes per connection] [port]
+ * YA - -Dstomp.* options are passed on to the server; with the default SQL storage the SQL server
+ * YA - must be running, or -Dstomp.storage=journal
+ */
+public class StompFootprintCheck {
+
+    private static final String SERVER_MODE = "--server";
+    private static final int WARMUP_CONNECTIONS = 500;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(SERVER_MODE)) {
+            serve(Integer.parseInt(args[1]));
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        double budget = args.length > 1 ? Double.parseDouble(args[1]) : 2048;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 7791;
+
+        // YA - the serial collector leaves no heap behind between a System.gc() and the reading
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Xmx1g");
+        command.add("-XX:+UseSerialGC");
+        // YA - the server is configured as this JVM is, e.g. -Dstomp.storage=journal
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("stomp."))
+                command.add("-D" + name + "=" + System.getProperty(name));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                StompFootprintCheck.class.getName(), SERVER_MODE, Integer.toString(port)));
+        Process server = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try {
+            PrintStream toServer = new PrintStream(server.getOutputStream(), true);
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+            // YA - not before this server is listening, another one may have the port
+            expect(fromServer, "Server started");
+
+            // YA - the first connections load classes and size the server's tables, not measured
+            for (Socket socket : connect(port, "warmup", WARMUP_CONNECTIONS))
+                socket.close();
+            Thread.sleep(1000);
+
+            long before = usedHeap(toServer, fromServer);
+            List<Socket> idle = connect(port, "idle-" + Long.toString(System.nanoTime(), 36), connections);
+            Thread.sleep(1000);
+            long after = usedHeap(toServer, fromServer);
+
+            double perConnection = (after - before) / (double) idle.size();
+            boolean ok = perConnection <= budget;
+            System.out.printf("%d idle connections (logged in, 1 subscription): %.0f bytes retained per connection, budget %.0f: %s%n",
+                    idle.size(), perConnection, budget, ok ? "OK" : "FAILED");
+            System.exit(ok ? 0 : 1);
+        } finally {
+            server.destroy();
+        }
+    }
+
+    // YA - the server side: a reactor, and the used heap after a full GC each time a line comes in
+    private static void serve(int port) throws Exception {
+        Thread reactor = new Thread(() -> {
+            Server.<String>reactor(2, port, StompMessagingProtocolImpl::new,
+                    StompMessageEncoderDecoder::new, StompExecutionPolicy::new).serve();
+            // YA - serve() only returns if the server could not start, e.g. the port is taken
+            System.exit(1);
+        }, "footprint-server");
+        reactor.setDaemon(true);
+        reactor.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (in.readLine() != null) {
+            for (int i = 0; i < 5; i++) {
+                System.gc();
+                Thread.sleep(200);
+            }
+            System.out.println("USED " + ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            System.out.flush();
+        }
+        // YA - the check is gone, the server's pool threads would keep this JVM alive
+        System.exit(0);
+    }
+
+    private static long usedHeap(PrintStream toServer, BufferedReader fromServer) throws IOException {
+        toServer.println("gc");
+        return Long.parseLong(expect(fromServer, "USED ").substring(5));
+    }
+
+    private static String expect(BufferedReader fromServer, String prefix) throws IOException {
+        String line;
+        while ((line = fromServer.readLine()) != null) {
+            // YA - the server prints its own lines too
+            if (line.startsWith(prefix))
+                return line;
+        }
+        throw new IOException("the server exited");
+    }
+
+    private static List<Socket> connect(int port, String login, int count) throws IOException {
+        List<Socket> sockets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            socket.getOutputStream().write(("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + login + i
+                    + "\npasscode:p\n\n\0SUBSCRIBE\ndestination:/footprint" + (i % 10) + "\nid:1\nreceipt:1\n\n\0")
+                    .getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            // YA - CONNECTED and the RECEIPT
+            InputStream in = socket.getInputStream();
+            for (int frames = 0; frames < 2; ) {
+                int b = in.read();
+                if (b == -1)
+                    throw new IOException("connection closed");
+                if (b == 0)
+                    frames++;
+            }
+            sockets.add(socket);
+        }
+        return sockets;
+    }
+
+}
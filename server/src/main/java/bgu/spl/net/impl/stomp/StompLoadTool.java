@@ -0,0 +1,152 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * YA - latency load tool for the STOMP server
+ * YA - every publisher has its own channel, subscribes to it and measures SEND -> MESSAGE round trips,
+ * YA - optional extra subscribers per channel only drain what they receive
+ *
+ * YA - usage: StompLoadTool [host] [port] [publishers] [messages per publisher] [extra subscribers per channel]
+ */
+public class StompLoadTool {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+        int publishers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        int extraSubscribers = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int warmup = messages / 10;
+
+        String run = Long.toString(System.nanoTime(), 36);
+        List<Client> drains = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            for (int s = 0; s < extraSubscribers; s++) {
+                Client sub = new Client(host, port, "load-" + run + "-s" + p + "-" + s);
+                sub.subscribe("/load-" + run + "-" + p);
+                drains.add(sub);
+            }
+        }
+        for (Client sub : drains)
+            sub.drainInBackground();
+
+        long[][] latencies = new long[publishers][];
+        Thread[] threads = new Thread[publishers];
+        for (int p = 0; p < publishers; p++) {
+            final int index = p;
+            Client pub = new Client(host, port, "load-" + run + "-p" + p);
+            pub.subscribe("/load-" + run + "-" + p);
+            threads[p] = new Thread(() -> latencies[index] = pub.pingPong("/load-" + run + "-" + index, messages, warmup));
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - start;
+
+        long[] all = new long[0];
+        for (long[] l : latencies) {
+            int from = all.length;
+            all = Arrays.copyOf(all, from + l.length);
+            System.arraycopy(l, 0, all, from, l.length);
+        }
+        Arrays.sort(all);
+
+        System.out.printf("publishers=%d messages=%d subscribers/channel=%d%n", publishers, messages, extraSubscribers + 1);
+        System.out.printf("round trip us: p50=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), all[all.length - 1] / 1000.0);
+        System.out.printf("throughput: %.0f SEND/s%n", publishers * (double) messages / (elapsed / 1e9));
+        System.exit(0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000.0;
+    }
+
+    // YA - a blocking STOMP client, just enough for the load
+    private static class Client {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Client(String host, int port, String login) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+            out = socket.getOutputStream();
+            send("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + login + "\npasscode:load\n\n");
+            String reply = readFrame();
+            if (!reply.startsWith("CONNECTED"))
+                throw new IOException("login failed: " + reply);
+        }
+
+        void subscribe(String destination) throws IOException {
+            send("SUBSCRIBE\ndestination:" + destination + "\nid:1\nreceipt:1\n\n");
+            readFrame();
+        }
+
+        long[] pingPong(String destination, int messages, int warmup) {
+            long[] latencies = new long[messages - warmup];
+            byte[] frame = ("SEND\ndestination:" + destination + "\n\nload message\n\0").getBytes(StandardCharsets.UTF_8);
+            try {
+                for (int i = 0; i < messages; i++) {
+                    long start = System.nanoTime();
+                    out.write(frame);
+                    out.flush();
+                    skipFrame();
+                    if (i >= warmup)
+                        latencies[i - warmup] = System.nanoTime() - start;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return latencies;
+        }
+
+        void drainInBackground() {
+            Thread t = new Thread(() -> {
+                try {
+                    while (true)
+                        skipFrame();
+                } catch (IOException ignored) {}
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void send(String frame) throws IOException {
+            out.write((frame + "\0").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private String readFrame() throws IOException {
+            StringBuilder frame = new StringBuilder();
+            int b;
+            while ((b = in.read()) > 0)
+                frame.append((char) b);
+            if (b == -1)
+                throw new IOException("connection closed");
+            return frame.toString();
+        }
+
+        private void skipFrame() throws IOException {
+            int b;
+            while ((b = in.read()) > 0) {
+                // YA - only the end of the frame matters
+            }
+            if (b == -1)
+                throw new IOException("connection closed");
+        }
+    }
+}
@@ -2,40 +2,324 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * YA - MessageEncoderDecoder implementation for STOMP protocol
  * YA - STOMP frames are terminated by a NULL byte ('\0')
+ * YA - if the frame has a content-length header the body is read by length instead,
+ * YA - so it may contain NULL bytes and is copied in bulk
+ * YA - frames are decoded as UTF-8, so only UTF-8 bodies are supported: bytes that are not UTF-8
+ * YA - become U+FFFD and could not be forwarded as sent, the protocol refuses a SEND with such a body
+ * YA - a frame whose content-length is over MAX_CONTENT_LENGTH is returned with its headers only,
+ * YA - everything after it is dropped; the protocol answers it with an ERROR and closes
  */
 public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // YA - decode(ByteBuffer) works in a per-thread scratch buffer, a connection only keeps
+    // YA - a buffer of its own while a frame is split between reads
+    private static final int SCRATCH_BUFFER_SIZE = 8 << 10; // 8KB
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_BUFFER_SIZE]);
+
+    // YA - largest content-length accepted
+    static final int MAX_CONTENT_LENGTH = 64 << 20; // 64MB
+    private static final int TOO_LARGE = -2;
+
+    // YA - frames of at least this size take their buffer from the shared pool
+    private static final int MIN_POOLED_SIZE = 64 << 10; // 64KB
+
+    // YA - free large frame buffers, one queue per power-of-two size class
+    private static final int POOLED_BUFFERS_PER_CLASS = 4;
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    private static final List<ConcurrentLinkedQueue<byte[]>> FRAME_BUFFER_POOL = new ArrayList<>();
+
+    static {
+        for (int i = 0; i < 32; i++)
+            FRAME_BUFFER_POOL.add(new ConcurrentLinkedQueue<>());
+    }
+
     // YA - buffer for accumulating incoming bytes until full STOMP frame is received
-    private byte[] buffer = new byte[1024];
+    // YA - null while idle (between frames) on the decode(ByteBuffer) path
+    private byte[] buffer = null;
     private int len = 0;
 
+    // YA - true once the empty line ending the headers was received
+    private boolean inBody = false;
+    // YA - body bytes still expected by content-length, -1 if the frame has no content-length
+    private int bodyRemaining = -1;
+    // YA - set after a frame over MAX_CONTENT_LENGTH, nothing more is decoded
+    private boolean discarding = false;
+
     @Override
     public String decodeNextByte(byte nextByte) {
+        if (discarding)
+            return null;
+        if (buffer == null)
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        if (bodyRemaining > 0) {
+            growForBody(1);
+            buffer[len++] = nextByte;
+            bodyRemaining--;
+            return null;
+        }
+        return decodeFrameByte(nextByte);
+    }
+
+    @Override
+    public String decode(ByteBuffer buf) {
+        if (discarding) {
+            buf.position(buf.limit());
+            return null;
+        }
+        byte[] scratch = null;
+        if (buffer == null)
+            buffer = scratch = SCRATCH.get();
+        try {
+            while (buf.hasRemaining()) {
+                if (bodyRemaining > 0) {
+                    // YA - copy as much of the body as we have
+                    int n = Math.min(bodyRemaining, buf.remaining());
+                    growForBody(n);
+                    buf.get(buffer, len, n);
+                    len += n;
+                    bodyRemaining -= n;
+                    continue;
+                }
+
+                String frame = decodeFrameByte(buf.get());
+                if (frame != null)
+                    return frame;
+            }
+            return null;
+        } finally {
+            if (len == 0) {
+                buffer = null;
+            } else if (buffer == scratch) {
+                // YA - a partial frame stays with the connection, the scratch stays with the thread
+                buffer = Arrays.copyOf(scratch, Math.max(len * 2, INITIAL_BUFFER_SIZE));
+            }
+        }
+    }
+
+    @Override
+    public byte[] encode(String message) {
+        // YA - message already contains '\0' if required by protocol
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean encodeTo(String message, ByteBuffer out) {
+        int start = out.position();
+        try {
+            putString(out, message);
+            return true;
+        } catch (BufferOverflowException e) {
+            out.position(start); // YA - does not fit, leave the buffer as it was
+            return false;
+        }
+    }
+
+    /**
+     * YA - write a string as UTF-8 without allocating
+     * YA - STOMP commands and headers are ASCII, so that is the fast path
+     * @throws BufferOverflowException if the buffer is too small
+     */
+    static void putString(ByteBuffer out, String s) {
+        putString(out, s, 0, s.length());
+    }
+
+    /**
+     * YA - write the chars s[start, end) as UTF-8 without allocating
+     * @throws BufferOverflowException if the buffer is too small
+     */
+    static void putString(ByteBuffer out, String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?'); // YA - unpaired surrogate, same as String.getBytes
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * YA - write an int as ASCII digits without allocating
+     * @throws BufferOverflowException if the buffer is too small
+     */
+    static void putInt(ByteBuffer out, int value) {
+        if (value < 0) {
+            out.put((byte) '-');
+            if (value == Integer.MIN_VALUE) {
+                putString(out, "2147483648");
+                return;
+            }
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            out.put((byte) ('0' + (value / divisor) % 10));
+    }
+
+    // YA - number of bytes s[start, end) takes in UTF-8, without encoding it
+    static int utf8Length(String s, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private String decodeFrameByte(byte nextByte) {
         // YA - STOMP frame ends when NULL byte is received
         if (nextByte == '\0') {
-            String frame = new String(buffer, 0, len, StandardCharsets.UTF_8);
-            len = 0; // YA - reset buffer for next frame
-            return frame;
+            return popFrame();
+        }
+
+        // YA - EOLs between frames (e.g. heart-beats) are not part of any frame
+        if (len == 0 && (nextByte == '\n' || nextByte == '\r')) {
+            return null;
+        }
+
+        pushByte(nextByte);
+
+        if (!inBody && nextByte == '\n' && len >= 2 && buffer[len - 2] == '\n') {
+            inBody = true;
+            int contentLength = parseContentLength();
+            if (contentLength == TOO_LARGE) {
+                discarding = true;
+                return popFrame();
+            }
+            if (contentLength > 0)
+                bodyRemaining = contentLength;
         }
+        return null; // YA - frame not complete yet
+    }
 
+    private void pushByte(byte nextByte) {
         // YA - enlarge buffer if needed
         if (len >= buffer.length) {
             buffer = Arrays.copyOf(buffer, buffer.length * 2);
         }
 
         buffer[len++] = nextByte;
-        return null; // YA - frame not complete yet
     }
 
-    @Override
-    public byte[] encode(String message) {
-        // YA - message already contains '\0' if required by protocol
-        return message.getBytes(StandardCharsets.UTF_8);
+    /**
+     * YA - make room for the next n body bytes
+     * YA - the buffer grows with what was received (doubling, up to the frame size), never to the
+     * YA - content-length alone, so a client that only announces a large body holds no memory for it
+     */
+    private void growForBody(int n) {
+        if (len + n <= buffer.length)
+            return;
+        int size = Math.min(len + bodyRemaining, Math.max(len + n, buffer.length * 2));
+        byte[] grown = size >= MIN_POOLED_SIZE ? leaseBuffer(size) : new byte[size];
+        System.arraycopy(buffer, 0, grown, 0, len);
+        releaseBuffer(buffer);
+        buffer = grown;
+    }
+
+    // YA - the one allocation left per SEND: the protocol works on Strings, so every frame is copied
+    // YA - into one (about the frame's size plus 40 bytes); routing after this allocates nothing
+    private String popFrame() {
+        String frame = new String(buffer, 0, len, StandardCharsets.UTF_8);
+        len = 0; // YA - reset buffer for next frame
+        inBody = false;
+        bodyRemaining = -1;
+
+        // YA - large buffers go back to the pool, the next frame starts small again
+        if (buffer.length >= MIN_POOLED_SIZE) {
+            releaseBuffer(buffer);
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        return frame;
+    }
+
+    // YA - value of the content-length header, -1 if missing or invalid, TOO_LARGE if over MAX_CONTENT_LENGTH
+    private int parseContentLength() {
+        int lineStart = 0;
+        while (lineStart < len) {
+            int lineEnd = lineStart;
+            while (lineEnd < len && buffer[lineEnd] != '\n')
+                lineEnd++;
+
+            if (lineStart > 0 && startsWith(lineStart, lineEnd, CONTENT_LENGTH)) {
+                long value = 0;
+                int i = lineStart + CONTENT_LENGTH.length;
+                if (i == lineEnd)
+                    return -1;
+                for (; i < lineEnd && buffer[i] != '\r'; i++) {
+                    if (buffer[i] < '0' || buffer[i] > '9')
+                        return -1;
+                    value = value * 10 + (buffer[i] - '0');
+                    if (value > MAX_CONTENT_LENGTH)
+                        return TOO_LARGE;
+                }
+                return (int) value;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[from + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] leaseBuffer(int size) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(size - 1);
+        byte[] buff = FRAME_BUFFER_POOL.get(sizeClass).poll();
+        return buff != null ? buff : new byte[1 << sizeClass];
+    }
+
+    private static void releaseBuffer(byte[] buff) {
+        // YA - only exact power-of-two buffers taken from the pool are returned to it
+        if (buff.length < MIN_POOLED_SIZE || Integer.bitCount(buff.length) != 1)
+            return;
+        ConcurrentLinkedQueue<byte[]> pool = FRAME_BUFFER_POOL.get(Integer.numberOfTrailingZeros(buff.length));
+        if (pool.size() < POOLED_BUFFERS_PER_CLASS)
+            pool.add(buff);
     }
 }
@@ -1,13 +1,29 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.ChannelMessage;
+import bgu.spl.net.api.EncodableMessage;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.ActorThreadPool;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.impl.data.FileUpload;
 import bgu.spl.net.impl.data.LoginStatus;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static bgu.spl.net.impl.stomp.StompMessageEncoderDecoder.putInt;
+import static bgu.spl.net.impl.stomp.StompMessageEncoderDecoder.putString;
+import static bgu.spl.net.impl.stomp.StompMessageEncoderDecoder.utf8Length;
+
 /**
  * YA - STOMP protocol implementation
  * YA - Implements MessagingProtocol<String> as required by the server API
@@ -20,12 +36,28 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     // YA - shared connections object (used to send messages)
     private Connections<String> connections;
 
-    // YA - subscriptionId -> destination
-    private final Map<Integer, String> subscriptions = new ConcurrentHashMap<>();
+    // YA - subscriptionId -> channel id
+    private final SubscriptionTable subscriptions = new SubscriptionTable();
+
+    // YA - transaction id -> SENDs buffered until COMMIT (transactions are per connection)
+    // YA - created by the first BEGIN, most connections never use one
+    private Map<String, Transaction> transactions = null;
+
+    // YA - bounds on what a connection keeps until COMMIT: open transactions, and SENDs and bytes per
+    // YA - transaction (an event of a batch is one SEND, the bytes are the length of the SEND frames);
+    // YA - the BEGIN or SEND over a bound gets an ERROR, which closes the connection and aborts its
+    // YA - transactions; -Dstomp.tx.maxOpen, -Dstomp.tx.maxSends, -Dstomp.tx.maxBytes
+    private static final int TX_MAX_OPEN = Integer.getInteger("stomp.tx.maxOpen", 8);
+    private static final int TX_MAX_SENDS = Integer.getInteger("stomp.tx.maxSends", 10000);
+    private static final long TX_MAX_BYTES = Long.getLong("stomp.tx.maxBytes", 16L << 20);
 
     // YA - static maps for user management (shared across all protocol instances)
     private final Database database = Database.getInstance();
 
+    // YA - publish rate limits, and this connection's buckets (null if connections are not limited)
+    private static final PublishLimiter LIMITER = PublishLimiter.shared();
+    private PublishLimiter.Buckets connectionBuckets = null;
+
     // YA - current user login
     private String login = null;
 
@@ -33,6 +65,35 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     private boolean connected = false;
     private boolean shouldTerminate = false;
 
+    private static final String DESTINATION = "destination:";
+
+    // YA - SEND content type carrying many events, separated by "---" lines
+    private static final String EVENT_BATCH_CONTENT_TYPE = "application/x-event-batch";
+    private static final String EVENT_BATCH_SEPARATOR = "\n---\n";
+
+    // YA - heart-beat the server offers, "send,receive" in ms as in the STOMP header
+    // YA - -Dstomp.heartbeat=10000,10000 by default, 0,0 turns it off
+    private static final long[] SERVER_HEARTBEAT = parseHeartbeat(System.getProperty("stomp.heartbeat", "10000,10000"));
+
+    // YA - commands we handle, matched against the frame without taking a substring
+    private static final String[] COMMANDS = {
+            "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "CONNECT", "DISCONNECT",
+            "BEGIN", "COMMIT", "ABORT", "SUMMARY"
+    };
+
+    // YA - the frame being processed, its header lines as offsets and where its body starts
+    // YA - the offset arrays belong to the processing thread and are only borrowed for one frame,
+    // YA - so parsing does not allocate and idle connections do not hold them
+    private static final ThreadLocal<int[][]> HEADER_INDEX = ThreadLocal.withInitial(() -> new int[][]{new int[8], new int[8]});
+    private String frame;
+    private int[] headerStarts;
+    private int[] headerEnds;
+    private int headerCount;
+    private int bodyStart;
+
+    // YA - the MESSAGE routed for a plain SEND, encoded once per subscriber; created by the first SEND
+    private MessageFrame messageFrame = null;
+
     // YA - global message-id counter
     private static final AtomicInteger messageIdCounter =
             new AtomicInteger(1);
@@ -44,6 +105,8 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     public void start(int connectionId, Connections<String> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
+        if (LIMITER.isEnabled())
+            connectionBuckets = LIMITER.newConnectionBuckets();
     }
 
     /**
@@ -54,35 +117,67 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     public String process(String message) {
         if (shouldTerminate) return null;
 
-        message = message.replace("\0", "");
-        String[] lines = message.split("\n");
-        if (lines.length == 0) return null; // YA - if empty frame, ignore
-        String command = lines[0];
+        // YA - the decoder never includes the terminating NULL; a body with
+        // YA - content-length may legally contain NULL bytes, so they are kept
 
-        switch (command) {
-            case "CONNECT":
-                handleConnect(lines, message);
-                break;
+        if (message.isEmpty()) return null; // YA - if empty frame, ignore
 
-            case "SUBSCRIBE":
-                handleSubscribe(lines, message);
-                break;
-
-            case "UNSUBSCRIBE":
-                handleUnsubscribe(lines, message);
-                break;
+        // YA - only the header lines are indexed, the body is left in place
+        String command = indexFrame(message);
 
-            case "SEND":
-                handleSend(lines, message);
-                break;
-
-            case "DISCONNECT":
-                handleDisconnect(lines);
-                break;
-
-            default:
+        try {
+            if (command == null) {
                 sendError("Unknown command", null, message);
-                break;
+                return null;
+            }
+            // YA - the decoder returns a frame over the size limit without its body, and reads no more
+            if (bodyStart == message.length() && contentLengthTooLarge()) {
+                sendError("content-length is over the limit of " + StompMessageEncoderDecoder.MAX_CONTENT_LENGTH + " bytes",
+                        header("receipt:"), message);
+                return null;
+            }
+
+            switch (command) {
+                case "CONNECT":
+                    handleConnect(message);
+                    break;
+
+                case "SUBSCRIBE":
+                    handleSubscribe(message);
+                    break;
+
+                case "UNSUBSCRIBE":
+                    handleUnsubscribe(message);
+                    break;
+
+                case "SEND":
+                    handleSend(message);
+                    break;
+
+                case "BEGIN":
+                    handleBegin(message);
+                    break;
+
+                case "COMMIT":
+                    handleCommit(message);
+                    break;
+
+                case "ABORT":
+                    handleAbort(message);
+                    break;
+
+                case "SUMMARY":
+                    handleSummary(message);
+                    break;
+
+                case "DISCONNECT":
+                    handleDisconnect();
+                    break;
+            }
+        } finally {
+            // YA - do not keep the frame alive between frames
+            frame = null;
+            headerStarts = headerEnds = null;
         }
 
         return null; // YA - replies are sent via connections.send(...)
@@ -93,23 +188,36 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
-    /* ===================== handlers ===================== */
+    /**
+     * YA - the client went away without DISCONNECT, release everything it held
+     */
+    @Override
+    public void connectionLost() {
+        // YA - terminated and logged out already; an ERROR sent inline leaves connected set
+        if (shouldTerminate && !connected) return;
+
+        if (connected)
+            database.logout(connectionId);
 
-    private void handleConnect(String[] lines, String originalFrame) {
-    String username = null;
-    String passcode = null;
+        subscriptions.clear();
+        transactions = null;
+        connections.disconnect(connectionId);
 
+        shouldTerminate = true;
+        connected = false;
+    }
+
+    /* ===================== handlers ===================== */
+
+    private void handleConnect(String originalFrame) {
     if (connected) {
         sendError("Already connected", null, originalFrame);
         return;
     }
 
-    for (int i = 1; i < lines.length; i++) {
-        if (lines[i].startsWith("login:"))
-            username = lines[i].substring("login:".length());
-        else if (lines[i].startsWith("passcode:"))
-            passcode = lines[i].substring("passcode:".length());
-    }
+    String username = header("login:");
+    String passcode = header("passcode:");
+    String heartbeat = header("heart-beat:");
 
     if (username == null || passcode == null) {
         sendError("Missing login or passcode", null, originalFrame);
@@ -123,8 +231,12 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         case LOGGED_IN_SUCCESSFULLY:
             this.login = username;
             this.connected = true;
-            connections.send(connectionId,
-                    "CONNECTED\nversion:1.2\n\n\0");
+            if (heartbeat == null) {
+                connections.send(connectionId,
+                        "CONNECTED\nversion:1.2\n\n\0");
+            } else {
+                negotiateHeartbeat(heartbeat);
+            }
             break;
 
         case ALREADY_LOGGED_IN:
@@ -145,26 +257,18 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 }
 
 
-    private void handleSubscribe(String[] lines, String originalFrame) {
+    private void handleSubscribe(String originalFrame) {
         if (!connected) {
             sendError("Not connected", null, originalFrame);
             return;
         }
 
-        String destination = null;
-        Integer id = null;
-        String receipt = null;
-
-        for (int i = 1; i < lines.length; i++) {
-            if (lines[i].startsWith("destination:"))
-                destination = lines[i].substring("destination:".length());
-            else if (lines[i].startsWith("id:"))
-                id = Integer.parseInt(lines[i].substring("id:".length()));
-            else if (lines[i].startsWith("receipt:"))
-                receipt = lines[i].substring("receipt:".length());
-        }
+        int destination = headerIndex(DESTINATION);
+        String idHeader = header("id:");
+        Integer id = idHeader == null ? null : Integer.parseInt(idHeader);
+        String receipt = header("receipt:");
 
-        if (destination == null || id == null) {
+        if (destination == -1 || id == null) {
             sendError("Missing headers in SUBSCRIBE", receipt, originalFrame);
             return;
         }
@@ -174,128 +278,263 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        subscriptions.put(id, destination);
+        // YA - one subscription per destination: the channel keeps one entry per connection, so a
+        // YA - second id would outlive the channel once the first is unsubscribed, and keep its id
+        // YA - after the id is released and reused for another destination
+        int start = headerStarts[destination] + DESTINATION.length();
+        if (subscriptions.containsChannel(connections.channelId(originalFrame, start, headerEnds[destination]))) {
+            sendError("Already subscribed to destination", receipt, originalFrame);
+            return;
+        }
 
-        connections.subscribe(connectionId, destination, id);
+        // YA - the destination is interned from the frame, a String is only built for a new channel
+        int channel = connections.subscribe(connectionId, originalFrame, start, headerEnds[destination], id);
+        if (channel != SubscriptionTable.NONE)
+            subscriptions.put(id, channel);
 
         if (receipt != null)
             sendReceipt(receipt);
     }
 
-    private void handleUnsubscribe(String[] lines, String originalFrame) {
+    private void handleUnsubscribe(String originalFrame) {
         if (!connected) {
             sendError("Not connected", null, originalFrame);
             return;
         }
 
-        Integer id = null;
-        String receipt = null;
-
-        for (int i = 1; i < lines.length; i++) {
-            if (lines[i].startsWith("id:"))
-                id = Integer.parseInt(lines[i].substring("id:".length()));
-            else if (lines[i].startsWith("receipt:"))
-                receipt = lines[i].substring("receipt:".length());
-        }
+        String idHeader = header("id:");
+        Integer id = idHeader == null ? null : Integer.parseInt(idHeader);
+        String receipt = header("receipt:");
 
         if (id == null) {
             sendError("Invalid subscription id", receipt, originalFrame);
             return;
         }
 
-        String destination = subscriptions.remove(id); // YA - if no id destination == null
+        int channel = subscriptions.remove(id); // YA - if no id channel == NONE
 
-        if (destination == null) {
+        if (channel == SubscriptionTable.NONE) {
             sendError("Subscription does not exist", receipt, originalFrame);
             return;
         }
 
-        connections.unsubscribeFromChannel(connectionId, destination);
+        connections.unsubscribeFromChannel(connectionId, channel);
 
         if (receipt != null)
             sendReceipt(receipt);
     }
 
-    private void handleSend(String[] lines, String originalFrame) {
-    String filename = null;
-
+    private void handleSend(String originalFrame) {
     if (!connected) {
         sendError("Not connected", null, originalFrame);
         return;
     }
 
-    String destination = null;
-    String receipt = null;
-    int bodyStart = -1;
-
-    for (int i = 1; i < lines.length; i++) {
-        if (lines[i].isEmpty()) {
-            bodyStart = i + 1;
-            break;
-        }
-        if (lines[i].startsWith("destination:"))
-            destination = lines[i].substring("destination:".length());
-        else if (lines[i].startsWith("receipt:"))
-            receipt = lines[i].substring("receipt:".length());
-        else if (lines[i].startsWith("file:"))
-            filename = lines[i].substring("file:".length());
-    }
+    // YA - only headers that are present are copied out of the frame
+    int destinationHeader = headerIndex(DESTINATION);
+    String receipt = header("receipt:");
+    String filename = header("file:");
+    String transaction = header("transaction:");
+    boolean eventBatch = headerEquals("content-type:", EVENT_BATCH_CONTENT_TYPE);
+    boolean hasContentLength = headerIndex("content-length:") != -1;
 
-    if (destination == null || bodyStart == -1) {
+    if (destinationHeader == -1 || bodyStart == -1) {
         sendError("Missing destination header", receipt, originalFrame);
         return;
     }
 
-    if (connections.getSubscriptionId(connectionId, destination) == null) {
+    // YA - the channel is found by the destination in the frame, the sender's own subscriptions
+    // YA - hold it, so its id and interned name stay valid while the SEND is routed
+    int channel = connections.channelId(originalFrame,
+            headerStarts[destinationHeader] + DESTINATION.length(), headerEnds[destinationHeader]);
+    if (!subscriptions.containsChannel(channel)) {
         sendError("User is not subscribed to destination", receipt, originalFrame);
         return;
     }
+    String destination = connections.channelName(channel);
 
-    StringBuilder body = new StringBuilder();
-    for (int i = bodyStart; i < lines.length; i++) {
-        body.append(lines[i]);
-        if (i < lines.length - 1)
-            body.append("\n");
-    }
-
-    // YA - track file upload ONCE per report
-    if (filename != null && login != null) {
-        database.trackFileUpload(login, filename, destination);
+    // YA - the decoder turns bytes that are not UTF-8 into U+FFFD, such a body would be forwarded
+    // YA - changed (and no longer match its content-length); a body with U+FFFD itself is refused too
+    if (originalFrame.indexOf('\uFFFD', bodyStart) != -1) {
+        sendError("Body is not valid UTF-8", receipt, originalFrame);
+        return;
     }
 
-    for (Integer connId : connections.getSubscribers(destination)) {
-        Integer subId = connections.getSubscriptionId(connId, destination);
-        int msgId = messageIdCounter.getAndIncrement();
+    // YA - a body with content-length is forwarded untouched, otherwise trailing EOLs are dropped
+    int bodyEnd = hasContentLength ? originalFrame.length() : trimTrailingNewlines(originalFrame, bodyStart, originalFrame.length());
 
-        String frame =
-                "MESSAGE\n" +
-                "subscription:" + subId + "\n" +
-                "message-id:" + msgId + "\n" +
-                "destination:" + destination + "\n\n" +
-                body + "\n\0";
+    // YA - an event batch counts as one message per event
+    List<PendingSend> events = eventBatch ? splitEventBatch(originalFrame, channel, destination, filename) : null;
+    if (LIMITER.isEnabled()
+            && !admitSend(destination, events == null ? 1 : events.size(), bodyEnd - bodyStart, receipt, originalFrame))
+        return;
 
-        connections.send(connId, frame);
+    if (transaction != null) {
+        // YA - inside a transaction: buffer until COMMIT, nothing is routed yet
+        Transaction pending = transactions == null ? null : transactions.get(transaction);
+        if (pending == null) {
+            sendError("Unknown transaction", receipt, originalFrame);
+            return;
+        }
+        // YA - the events of a batch share its frame, it is counted once
+        if (pending.sends.size() + (eventBatch ? events.size() : 1) > TX_MAX_SENDS
+                || pending.bytes + originalFrame.length() > TX_MAX_BYTES) {
+            sendError("Transaction too large", receipt, originalFrame);
+            return;
+        }
+        pending.bytes += originalFrame.length();
+        if (eventBatch)
+            pending.sends.addAll(events);
+        else
+            pending.sends.add(new PendingSend(channel, destination, originalFrame, bodyStart, bodyEnd, filename, hasContentLength));
+    } else if (eventBatch) {
+        // YA - bulk report: every event in the body becomes its own MESSAGE
+        routeBatch(events);
+    } else {
+        routeSingle(channel, destination, filename, bodyEnd, hasContentLength);
     }
 
     if (receipt != null)
         sendReceipt(receipt);
 }
 
+    private void handleBegin(String originalFrame) {
+        if (!connected) {
+            sendError("Not connected", null, originalFrame);
+            return;
+        }
+
+        String transaction = header("transaction:");
+        String receipt = header("receipt:");
+
+        if (transaction == null) {
+            sendError("Missing transaction header", receipt, originalFrame);
+            return;
+        }
+
+        if (transactions == null)
+            transactions = new HashMap<>();
+        if (transactions.containsKey(transaction)) {
+            sendError("Transaction already exists", receipt, originalFrame);
+            return;
+        }
+        if (transactions.size() >= TX_MAX_OPEN) {
+            sendError("Too many open transactions", receipt, originalFrame);
+            return;
+        }
+        transactions.put(transaction, new Transaction());
+
+        if (receipt != null)
+            sendReceipt(receipt);
+    }
+
+    private void handleCommit(String originalFrame) {
+        if (!connected) {
+            sendError("Not connected", null, originalFrame);
+            return;
+        }
+
+        String transaction = header("transaction:");
+        String receipt = header("receipt:");
+
+        Transaction pending = transaction == null || transactions == null ? null : transactions.remove(transaction);
+        if (pending == null) {
+            sendError("Unknown transaction", receipt, originalFrame);
+            return;
+        }
+
+        // YA - all buffered SENDs are routed together as one batch
+        routeBatch(pending.sends);
 
-    private void handleDisconnect(String[] lines) {
-    String receipt = null;
+        if (receipt != null)
+            sendReceipt(receipt);
+    }
 
-    for (int i = 1; i < lines.length; i++) {
-        if (lines[i].startsWith("receipt:"))
-            receipt = lines[i].substring("receipt:".length());
+    private void handleAbort(String originalFrame) {
+        if (!connected) {
+            sendError("Not connected", null, originalFrame);
+            return;
+        }
+
+        String transaction = header("transaction:");
+        String receipt = header("receipt:");
+
+        if (transaction == null || transactions == null || transactions.remove(transaction) == null) {
+            sendError("Unknown transaction", receipt, originalFrame);
+            return;
+        }
+
+        if (receipt != null)
+            sendReceipt(receipt);
     }
 
+    /**
+     * YA - reply with the broker-maintained summary of a reporter in a game channel
+     * YA - answered from the running summary, no events are replayed
+     * YA - the reply is the RECEIPT of the SUMMARY frame with the summary as its body, so the frame
+     * YA - needs a receipt header; found:false (and an empty body) if the reporter sent nothing to the
+     * YA - channel, otherwise found:true and events-omitted, the earlier events the summary left out
+     * YA - (it keeps the latest GameSummary.MAX_EVENTS_PER_REPORTER)
+     * YA - as for SEND the requester must be subscribed to the destination; an ERROR if the server
+     * YA - keeps no summaries (-Dstomp.summaries)
+     */
+    private void handleSummary(String originalFrame) {
+        if (!connected) {
+            sendError("Not connected", null, originalFrame);
+            return;
+        }
+
+        String destination = header(DESTINATION);
+        String user = header("user:");
+        String receipt = header("receipt:");
+
+        if (destination == null || user == null || receipt == null) {
+            sendError("Missing headers in SUMMARY", receipt, originalFrame);
+            return;
+        }
+
+        if (!connections.summariesEnabled()) {
+            sendError("Summaries are not enabled", receipt, originalFrame);
+            return;
+        }
+
+        int channel = connections.channelId(destination, 0, destination.length());
+        if (!subscriptions.containsChannel(channel)) {
+            sendError("User is not subscribed to destination", receipt, originalFrame);
+            return;
+        }
+
+        StringBuilder summary = new StringBuilder();
+        long omitted = connections.getSummary(channel, user, summary);
+
+        StringBuilder frame = new StringBuilder(summary.length() + 128);
+        frame.append("RECEIPT\n");
+        frame.append("receipt-id:").append(receipt).append("\n");
+        frame.append("destination:").append(destination).append("\n");
+        frame.append("user:").append(user).append("\n");
+        if (omitted == -1) {
+            frame.append("found:false\n");
+        } else {
+            frame.append("found:true\n");
+            frame.append("events-omitted:").append(omitted).append("\n");
+        }
+        frame.append("\n");
+        frame.append(summary);
+        frame.append("\0");
+
+        connections.send(connectionId, frame.toString());
+    }
+
+    private void handleDisconnect() {
+    String receipt = header("receipt:");
+
     if (receipt != null)
         sendReceipt(receipt);
 
     database.logout(connectionId);
 
     subscriptions.clear();
+    transactions = null; // YA - uncommitted transactions are aborted
 
     // YA - disconnect from server connections
     connections.disconnect(connectionId);
@@ -307,6 +546,255 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     /* ===================== helpers ===================== */
 
+    /**
+     * YA - check a SEND against the publish rate limits, before anything is routed or buffered
+     * @return false if the SEND must not be routed (dropped, or answered with an ERROR)
+     */
+    private boolean admitSend(String destination, int messages, int bytes, String receipt, String originalFrame) {
+        long verdict = LIMITER.admit(connectionBuckets, login, destination, messages, bytes);
+        if (verdict == PublishLimiter.ADMITTED)
+            return true;
+
+        if (verdict != PublishLimiter.REJECTED) {
+            // YA - delay: routed, but the client is not read until it is back within its limits
+            connections.pauseReads(connectionId, (verdict + 999_999) / 1_000_000);
+            return true;
+        }
+
+        if (LIMITER.getPolicy() == PublishLimiter.Policy.ERROR)
+            sendError("Publish rate limit exceeded", receipt, originalFrame);
+        else if (receipt != null)
+            sendReceipt(receipt); // YA - dropped, the frame was still processed
+        return false;
+    }
+
+    /**
+     * YA - agree on heart-beats with the client (STOMP 1.2): the client offers "cx,cy",
+     * YA - each direction runs at the slower of the two sides, 0 on either side disables it
+     */
+    private void negotiateHeartbeat(String clientHeader) {
+        long[] client = parseHeartbeat(clientHeader);
+        long outgoing = client[1] == 0 || SERVER_HEARTBEAT[0] == 0 ? 0 : Math.max(client[1], SERVER_HEARTBEAT[0]);
+        long incoming = client[0] == 0 || SERVER_HEARTBEAT[1] == 0 ? 0 : Math.max(client[0], SERVER_HEARTBEAT[1]);
+
+        connections.send(connectionId,
+                "CONNECTED\nversion:1.2\nheart-beat:" + SERVER_HEARTBEAT[0] + "," + SERVER_HEARTBEAT[1] + "\n\n\0");
+        if (outgoing > 0 || incoming > 0)
+            connections.heartbeat(connectionId, outgoing, incoming);
+    }
+
+    // YA - "x,y" to {x, y}, anything malformed counts as 0 (no heart-beat)
+    private static long[] parseHeartbeat(String value) {
+        long[] result = new long[2];
+        int comma = value.indexOf(',');
+        if (comma == -1)
+            return result;
+        try {
+            result[0] = Math.max(0, Long.parseLong(value.substring(0, comma).trim()));
+            result[1] = Math.max(0, Long.parseLong(value.substring(comma + 1).trim()));
+        } catch (NumberFormatException e) {
+            result[0] = result[1] = 0;
+        }
+        return result;
+    }
+
+    /**
+     * YA - route a single SEND without building anything per subscriber
+     * YA - the same MessageFrame is prepared and encoded for each subscriber in turn
+     * YA - allocation free, StompAllocationCheck fails if the path starts allocating again
+     */
+    private void routeSingle(int channel, String destination, String filename, int bodyEnd, boolean exactLength) {
+        // YA - track file upload ONCE per report
+        if (filename != null && login != null) {
+            database.trackFileUpload(login, filename, destination);
+        }
+
+        connections.aggregate(channel, frame, bodyStart, bodyEnd);
+
+        if (messageFrame == null)
+            messageFrame = new MessageFrame();
+        messageFrame.set(destination, frame, bodyStart, bodyEnd, exactLength);
+        try {
+            connections.sendToChannel(channel, messageFrame);
+        } finally {
+            messageFrame.clear();
+        }
+    }
+
+    /**
+     * YA - route SENDs as one batch, in order
+     * YA - one subscriber snapshot per destination, one write per subscriber
+     * YA - and one database write for all reported files
+     */
+    private void routeBatch(List<PendingSend> batch) {
+        // YA - destination -> its channel id and subscribers, resolved once per batch
+        Map<String, Integer> channels = new HashMap<>();
+        Map<String, Map<Integer, Integer>> snapshots = new HashMap<>();
+        // YA - connectionId -> all MESSAGE frames for that subscriber, in send order
+        Map<Integer, MessageBatch> outgoing = new LinkedHashMap<>();
+        Set<FileUpload> uploads = new LinkedHashSet<>();
+
+        for (PendingSend send : batch) {
+            Map<Integer, Integer> subs = snapshots.get(send.destination);
+            if (subs == null) {
+                int channel;
+                do {
+                    channel = channelOf(send);
+                    subs = connections.getSubscriptionsSnapshot(channel);
+                } while (channel != -1 && !send.destination.equals(connections.channelName(channel)));
+                channels.put(send.destination, channel);
+                snapshots.put(send.destination, subs);
+            }
+
+            for (Map.Entry<Integer, Integer> sub : subs.entrySet()) {
+                MessageBatch frames = outgoing.get(sub.getKey());
+                if (frames == null) {
+                    frames = new MessageBatch();
+                    outgoing.put(sub.getKey(), frames);
+                }
+                frames.add(sub.getValue(), send);
+            }
+
+            connections.aggregate(channels.get(send.destination), send.frame, send.bodyStart, send.bodyEnd);
+
+            if (send.filename != null)
+                uploads.add(new FileUpload(send.filename, send.destination));
+        }
+
+        // YA - track file uploads ONCE per batch
+        if (!uploads.isEmpty() && login != null) {
+            database.trackFileUploads(login, uploads);
+        }
+
+        for (Map.Entry<Integer, MessageBatch> out : outgoing.entrySet()) {
+            MessageBatch frames = out.getValue();
+            // YA - reserve consecutive message ids for the whole batch at once
+            frames.firstMessageId = messageIdCounter.getAndAdd(frames.size);
+            connections.send(out.getKey(), frames);
+        }
+    }
+
+    /**
+     * YA - current id of a routed SEND's channel, -1 if the channel has no subscribers any more
+     * YA - a SEND buffered in a transaction may outlive its channel and the id may have been reused
+     * YA - by another destination, so the id is only kept while it still has the SEND's name
+     */
+    private int channelOf(PendingSend send) {
+        if (send.destination.equals(connections.channelName(send.channel)))
+            return send.channel;
+        return connections.channelId(send.destination, 0, send.destination.length());
+    }
+
+    /**
+     * YA - walk an event batch body and cut it into events at separator lines
+     * YA - events are taken straight out of the frame, the body is never copied as a whole
+     */
+    private List<PendingSend> splitEventBatch(String frame, int channel, String destination, String filename) {
+        List<PendingSend> events = new ArrayList<>();
+        int pos = bodyStart;
+        while (pos < frame.length()) {
+            int next = frame.indexOf(EVENT_BATCH_SEPARATOR, pos - 1);
+            int eventEnd = next == -1 ? frame.length() : next;
+            int end = trimTrailingNewlines(frame, pos, eventEnd);
+            if (end > pos) {
+                events.add(new PendingSend(channel, destination, frame, pos, end, filename, false));
+            }
+            if (next == -1)
+                break;
+            pos = next + EVENT_BATCH_SEPARATOR.length();
+        }
+        return events;
+    }
+
+    private int trimTrailingNewlines(String frame, int start, int end) {
+        while (end > start && frame.charAt(end - 1) == '\n')
+            end--;
+        return end;
+    }
+
+    /**
+     * YA - index the command and header lines of a frame
+     * @return the command, as one of COMMANDS, or null if unknown
+     */
+    private String indexFrame(String message) {
+        frame = message;
+        int[][] index = HEADER_INDEX.get();
+        headerStarts = index[0];
+        headerEnds = index[1];
+        headerCount = 0;
+        bodyStart = -1;
+
+        int commandEnd = message.indexOf('\n');
+        if (commandEnd == -1)
+            commandEnd = message.length();
+
+        int pos = commandEnd + 1;
+        while (pos < message.length()) {
+            int lineEnd = message.indexOf('\n', pos);
+            if (lineEnd == -1)
+                lineEnd = message.length();
+            if (lineEnd == pos) { // YA - empty line, the body follows
+                bodyStart = pos + 1;
+                break;
+            }
+            if (headerCount == headerStarts.length) {
+                headerStarts = index[0] = Arrays.copyOf(headerStarts, headerCount * 2);
+                headerEnds = index[1] = Arrays.copyOf(headerEnds, headerCount * 2);
+            }
+            headerStarts[headerCount] = pos;
+            headerEnds[headerCount] = lineEnd;
+            headerCount++;
+            pos = lineEnd + 1;
+        }
+
+        for (String command : COMMANDS) {
+            if (command.length() == commandEnd && message.startsWith(command))
+                return command;
+        }
+        return null;
+    }
+
+    // YA - index of the first header line starting with prefix, -1 if none
+    private int headerIndex(String prefix) {
+        for (int i = 0; i < headerCount; i++) {
+            if (frame.startsWith(prefix, headerStarts[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    // YA - true if the content-length header is a number over MAX_CONTENT_LENGTH, same parsing as the decoder
+    private boolean contentLengthTooLarge() {
+        int i = headerIndex("content-length:");
+        if (i == -1)
+            return false;
+        long value = 0;
+        for (int pos = headerStarts[i] + "content-length:".length(); pos < headerEnds[i] && frame.charAt(pos) != '\r'; pos++) {
+            char c = frame.charAt(pos);
+            if (c < '0' || c > '9')
+                return false;
+            value = value * 10 + (c - '0');
+            if (value > StompMessageEncoderDecoder.MAX_CONTENT_LENGTH)
+                return true;
+        }
+        return false;
+    }
+
+    // YA - value of a header of the current frame, null if missing
+    private String header(String prefix) {
+        int i = headerIndex(prefix);
+        return i == -1 ? null : frame.substring(headerStarts[i] + prefix.length(), headerEnds[i]);
+    }
+
+    // YA - compare a header value without copying it
+    private boolean headerEquals(String prefix, String value) {
+        int i = headerIndex(prefix);
+        if (i == -1)
+            return false;
+        int start = headerStarts[i] + prefix.length();
+        return headerEnds[i] - start == value.length() && frame.startsWith(value, start);
+    }
+
     private void sendReceipt(String receiptId) {
         String frame =
                 "RECEIPT\n" +
@@ -332,9 +820,152 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.send(connectionId, frame.toString());
 
         // YA - STOMP spec: ERROR must close the connection
-        connections.disconnect(connectionId);
+        // YA - logging out may wait for the audit log (block overflow, durable mode); on the selector
+        // YA - thread it is left to connectionLost(), which the reactor runs on the connection's actor
+        // YA - once the connection is closed
+        if (connected && !ActorThreadPool.runningInline()) {
+            database.logout(connectionId);
+            connected = false;
+        }
+        transactions = null;
         shouldTerminate = true;
-        connected = false;
+        connections.disconnect(connectionId);
+
+    }
 
+    /**
+     * YA - the MESSAGE frames routed to one subscriber, encoded straight into its write buffer
+     * YA - ids are written as ASCII digits, no frame string is ever built
+     */
+    private static class MessageBatch implements EncodableMessage {
+        private PendingSend[] sends = new PendingSend[1];
+        private int[] subscriptionIds = new int[1];
+        int size = 0;
+        int firstMessageId;
+
+        void add(int subscriptionId, PendingSend send) {
+            if (size == sends.length) {
+                sends = Arrays.copyOf(sends, size * 2);
+                subscriptionIds = Arrays.copyOf(subscriptionIds, size * 2);
+            }
+            sends[size] = send;
+            subscriptionIds[size] = subscriptionId;
+            size++;
+        }
+
+        @Override
+        public boolean encodeTo(ByteBuffer out) {
+            int start = out.position();
+            try {
+                for (int i = 0; i < size; i++) {
+                    PendingSend send = sends[i];
+                    encodeMessage(out, subscriptionIds[i], firstMessageId + i, send.destination,
+                            send.frame, send.bodyStart, send.bodyEnd, send.exactLength);
+                }
+                return true;
+            } catch (BufferOverflowException e) {
+                out.position(start);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * YA - the MESSAGE for a single SEND, reused for every SEND of this connection
+     * YA - each subscriber gets its own subscription and message ids written into its buffer
+     */
+    private static class MessageFrame implements ChannelMessage {
+        private String destination;
+        private String frame;
+        private int bodyStart;
+        private int bodyEnd;
+        private boolean exactLength;
+        private int subscriptionId;
+        private int messageId;
+
+        void set(String destination, String frame, int bodyStart, int bodyEnd, boolean exactLength) {
+            this.destination = destination;
+            this.frame = frame;
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyEnd;
+            this.exactLength = exactLength;
+        }
+
+        void clear() {
+            destination = null;
+            frame = null;
+        }
+
+        @Override
+        public void prepare(int subscriptionId) {
+            this.subscriptionId = subscriptionId;
+            this.messageId = messageIdCounter.getAndIncrement();
+        }
+
+        @Override
+        public boolean encodeTo(ByteBuffer out) {
+            int start = out.position();
+            try {
+                encodeMessage(out, subscriptionId, messageId, destination, frame, bodyStart, bodyEnd, exactLength);
+                return true;
+            } catch (BufferOverflowException e) {
+                out.position(start);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * YA - write one MESSAGE frame whose body is frame[bodyStart, bodyEnd)
+     * @throws BufferOverflowException if the buffer is too small
+     */
+    private static void encodeMessage(ByteBuffer out, int subscriptionId, int messageId, String destination,
+                                      String frame, int bodyStart, int bodyEnd, boolean exactLength) {
+        putString(out, "MESSAGE\nsubscription:");
+        putInt(out, subscriptionId);
+        putString(out, "\nmessage-id:");
+        putInt(out, messageId);
+        putString(out, "\ndestination:");
+        putString(out, destination);
+        if (exactLength) {
+            putString(out, "\ncontent-length:");
+            putInt(out, utf8Length(frame, bodyStart, bodyEnd));
+            putString(out, "\n\n");
+            putString(out, frame, bodyStart, bodyEnd);
+            out.put((byte) '\0');
+        } else {
+            putString(out, "\n\n");
+            putString(out, frame, bodyStart, bodyEnd);
+            putString(out, "\n\0");
+        }
+    }
+
+    // YA - the SENDs of an open transaction and the length of the frames they keep
+    private static class Transaction {
+        final List<PendingSend> sends = new ArrayList<>();
+        long bytes = 0;
+    }
+
+    // YA - a SEND that was accepted but not routed yet
+    // YA - its body is kept as a range of the received frame, never copied out
+    private static class PendingSend {
+        final int channel;
+        final String destination; // YA - the channel's interned name
+        final String frame;
+        final int bodyStart;
+        final int bodyEnd;
+        final String filename;
+        // YA - body came with content-length, forwarded with content-length as is
+        final boolean exactLength;
+
+        PendingSend(int channel, String destination, String frame, int bodyStart, int bodyEnd, String filename, boolean exactLength) {
+            this.channel = channel;
+            this.destination = destination;
+            this.frame = frame;
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyEnd;
+            this.filename = filename;
+            this.exactLength = exactLength;
+        }
     }
 }
@@ -3,6 +3,8 @@ package bgu.spl.net.impl.stomp;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.ExecutionPolicy;
 import bgu.spl.net.srv.Server;
 
 import java.util.function.Supplier;
@@ -19,6 +21,9 @@ public class StompServer {
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
+        // YA - load the registered users now rather than on the first CONNECT
+        Database.getInstance();
+
         // YA - STOMP protocol factory
         Supplier<MessagingProtocol<String>> protocolFactory = StompMessagingProtocolImpl::new;
 
@@ -38,11 +43,15 @@ public class StompServer {
 
             int numThreads = Runtime.getRuntime().availableProcessors();
 
+            // YA - cheap frames run on the selector thread, -Dstomp.inline=false sends everything to the pool
+            boolean inline = !"false".equals(System.getProperty("stomp.inline"));
+
             Server.reactor(
                     numThreads,
                     port,
                     protocolFactory,
-                    encdecFactory
+                    encdecFactory,
+                    connections -> inline ? new StompExecutionPolicy(connections) : ExecutionPolicy.POOL
             ).serve();
 
         } else {
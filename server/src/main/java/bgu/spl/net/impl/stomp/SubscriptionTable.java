@@ -0,0 +1,87 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * YA - subscriptionId -> channel id of one connection
+ * YA - almost every client has one to three subscriptions, those are kept in fields;
+ * YA - only a client with more gets a HashMap
+ * YA - not thread safe, only used by the connection's protocol
+ */
+class SubscriptionTable {
+
+    static final int NONE = -1;
+
+    private int id0, id1, id2;
+    private int channel0 = NONE, channel1 = NONE, channel2 = NONE; // YA - NONE = free slot
+    private Map<Integer, Integer> overflow = null;
+
+    boolean containsKey(int id) {
+        return get(id) != NONE;
+    }
+
+    // YA - @return the channel of the subscription, NONE if there is none
+    int get(int id) {
+        if (channel0 != NONE && id0 == id) return channel0;
+        if (channel1 != NONE && id1 == id) return channel1;
+        if (channel2 != NONE && id2 == id) return channel2;
+        Integer channel = overflow == null ? null : overflow.get(id);
+        return channel == null ? NONE : channel;
+    }
+
+    // YA - true if a subscription of the connection is to this channel (there is at most one)
+    boolean containsChannel(int channel) {
+        if (channel == NONE)
+            return false;
+        if (channel0 == channel || channel1 == channel || channel2 == channel)
+            return true;
+        return overflow != null && overflow.containsValue(channel);
+    }
+
+    // YA - the id must not be in the table yet
+    void put(int id, int channel) {
+        if (channel0 == NONE) {
+            id0 = id;
+            channel0 = channel;
+        } else if (channel1 == NONE) {
+            id1 = id;
+            channel1 = channel;
+        } else if (channel2 == NONE) {
+            id2 = id;
+            channel2 = channel;
+        } else {
+            if (overflow == null)
+                overflow = new HashMap<>();
+            overflow.put(id, channel);
+        }
+    }
+
+    // YA - @return the channel of the removed subscription, NONE if there was none
+    int remove(int id) {
+        int channel;
+        if (channel0 != NONE && id0 == id) {
+            channel = channel0;
+            channel0 = NONE;
+        } else if (channel1 != NONE && id1 == id) {
+            channel = channel1;
+            channel1 = NONE;
+        } else if (channel2 != NONE && id2 == id) {
+            channel = channel2;
+            channel2 = NONE;
+        } else {
+            Integer removed = overflow == null ? null : overflow.remove(id);
+            if (removed == null)
+                return NONE;
+            if (overflow.isEmpty())
+                overflow = null;
+            channel = removed;
+        }
+        return channel;
+    }
+
+    void clear() {
+        channel0 = channel1 = channel2 = NONE;
+        overflow = null;
+    }
+}
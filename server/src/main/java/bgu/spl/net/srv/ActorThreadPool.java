@@ -13,6 +13,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ActorThreadPool {
 
+    // YA - set while tryRunInline runs a task on the caller's thread
+    private static final ThreadLocal<Boolean> INLINE = new ThreadLocal<>();
+
     private final Map<Object, Queue<Runnable>> acts;
     private final ReadWriteLock actsRWLock;
     private final Set<Object> playingNow;
@@ -36,6 +39,35 @@ public class ActorThreadPool {
         }
     }
 
+    /**
+     * YA - run r on the calling thread if the actor has nothing running or queued
+     * YA - anything submitted for the actor meanwhile is queued behind it, so order is kept
+     * @return false if the actor is busy, r was not run
+     */
+    public boolean tryRunInline(Object act, Runnable r) {
+        synchronized (act) {
+            if (playingNow.contains(act))
+                return false;
+            playingNow.add(act);
+        }
+        INLINE.set(Boolean.TRUE);
+        try {
+            r.run();
+        } finally {
+            INLINE.remove();
+            complete(act);
+        }
+        return true;
+    }
+
+    /**
+     * YA - true if the calling thread runs a task through tryRunInline (for the reactor, the
+     * YA - selector thread), where the task must not wait for anything
+     */
+    public static boolean runningInline() {
+        return INLINE.get() != null;
+    }
+
     public void shutdown() {
         threads.shutdownNow();
     }
@@ -66,9 +98,18 @@ public class ActorThreadPool {
 
     private void complete(Object act) {
         synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
+            actsRWLock.readLock().lock();
+            Queue<Runnable> pending = acts.get(act);
+            actsRWLock.readLock().unlock();
+
+            if (pending == null || pending.isEmpty()) {
                 playingNow.remove(act);
+                // YA - an idle actor keeps no queue, the next burst creates it again
+                if (pending != null) {
+                    actsRWLock.writeLock().lock();
+                    acts.remove(act);
+                    actsRWLock.writeLock().unlock();
+                }
             } else {
                 execute(pending.poll(), act);
             }
@@ -1,14 +1,23 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.EncodableMessage;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.api.StompMessagingProtocol;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+
+    // YA - a client is disconnected after this many heart-beat intervals without traffic
+    private static final int HEARTBEAT_GRACE = 2;
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
@@ -16,6 +25,15 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     private BufferedOutputStream out;
     private volatile boolean connected = true;
 
+    // YA - negotiated heart-beat intervals in ms (0 = none) and the last traffic in each direction
+    private volatile long heartbeatOut = 0;
+    private volatile long heartbeatIn = 0;
+    private volatile long lastRead;
+    private volatile long lastWrite;
+
+    // YA - set by pauseReads(), the next read waits until then
+    private volatile long readsPausedUntil = 0;
+
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
         this.sock = sock;
         this.encdec = reader;
@@ -26,27 +44,103 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
             int read;
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(chunk);
 
             in = new BufferedInputStream(sock.getInputStream());
             out = new BufferedOutputStream(sock.getOutputStream());
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    T response = protocol.process(nextMessage);
-                    if (response != null) {
-                        out.write(encdec.encode(response));
-                        out.flush();
+            // YA - read whatever is available and let the decoder consume it in bulk
+            while (!protocol.shouldTerminate() && connected && (read = readOrHeartbeat(chunk)) >= 0) {
+                if (read == 0)
+                    continue; // YA - read timed out, heart-beat handled
+                buf.limit(read).position(0);
+                while (buf.hasRemaining() && !protocol.shouldTerminate()) {
+                    T nextMessage = encdec.decode(buf);
+                    if (nextMessage != null) {
+                        T response = protocol.process(nextMessage);
+                        if (response != null) {
+                            byte[] bytes = encdec.encode(response);
+                            // YA - send() may write from another thread, e.g. a reply of the protocol's executor
+                            synchronized (out) {
+                                out.write(bytes);
+                                out.flush();
+                            }
+                            lastWrite = System.currentTimeMillis();
+                        }
                     }
                 }
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            // YA - the client went away without DISCONNECT, let the protocol clean up
+            if (!protocol.shouldTerminate() && protocol instanceof StompMessagingProtocol)
+                ((StompMessagingProtocol<T>) protocol).connectionLost();
         }
 
     }
 
+    /**
+     * YA - read with the socket timeout set by heartbeat(); a timeout sends a heart-beat if one is due
+     * @return bytes read, 0 after a timeout, -1 at end of stream or when the client is overdue
+     */
+    private int readOrHeartbeat(byte[] chunk) throws IOException {
+        // YA - pauseReads() is called by the protocol on this thread, the pause is a sleep before the next read
+        long pause;
+        while ((pause = readsPausedUntil - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            lastRead = System.currentTimeMillis(); // YA - the client was not silent, we were not listening
+        }
+        try {
+            int read = in.read(chunk);
+            lastRead = System.currentTimeMillis();
+            return read;
+        } catch (SocketTimeoutException e) {
+            long now = System.currentTimeMillis();
+            if (heartbeatIn > 0 && now - lastRead >= heartbeatIn * HEARTBEAT_GRACE) {
+                System.out.println("Closing connection silent for " + (now - lastRead) + "ms");
+                return -1;
+            }
+            if (heartbeatOut > 0 && now - lastWrite >= heartbeatOut) {
+                synchronized (out) {
+                    out.write('\n');
+                    out.flush();
+                }
+                lastWrite = now;
+            }
+            return 0;
+        }
+    }
+
+    @Override
+    public void heartbeat(long outgoingMillis, long incomingMillis) {
+        heartbeatOut = outgoingMillis;
+        heartbeatIn = incomingMillis;
+        lastRead = lastWrite = System.currentTimeMillis();
+
+        // YA - wake up often enough for both directions
+        long timeout = Long.MAX_VALUE;
+        if (outgoingMillis > 0)
+            timeout = outgoingMillis;
+        if (incomingMillis > 0)
+            timeout = Math.min(timeout, incomingMillis);
+        try {
+            sock.setSoTimeout(timeout == Long.MAX_VALUE ? 0 : (int) Math.min(timeout, Integer.MAX_VALUE));
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void pauseReads(long millis) {
+        readsPausedUntil = Math.max(readsPausedUntil, System.currentTimeMillis() + millis);
+    }
+
     @Override
     public void close() throws IOException {
         connected = false;
@@ -67,6 +161,7 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
                 out.write(bytes);// YA write bytes to output stream
                 out.flush();// YA flush to ensure sending
             }
+            lastWrite = System.currentTimeMillis();
         } catch (IOException e) {
             // YA if send fails -> disconnect
             connected = false;
@@ -74,6 +169,24 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
         }
     }
 
+    @Override
+    public void send(EncodableMessage msg) {
+        if (msg == null) return;
+        if (out == null) return;
+
+        try {
+            byte[] bytes = msg.encode();
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+            lastWrite = System.currentTimeMillis();
+        } catch (IOException e) {
+            connected = false;
+            try { close(); } catch (IOException ignored) {}
+        }
+    }
+
     public MessagingProtocol<T> getProtocol() {
         return protocol;
     }
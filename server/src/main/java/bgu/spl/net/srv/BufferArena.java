@@ -0,0 +1,282 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YA - off-heap buffer arena used by the reactor for socket reads and outbound buffers
+ * YA - direct memory is reserved in slabs, each slab is cut into buffers of one size class
+ * YA - total reserved memory is capped, a slab that becomes completely free is given back
+ * YA - if the class already keeps enough free buffers
+ *
+ * YA - configured with system properties:
+ * YA -   stomp.arena.maxBytes       hard cap on reserved off-heap bytes (default 64MB)
+ * YA -   stomp.arena.policy         what lease() does at the cap: heap (default) or fail
+ * YA -   stomp.arena.reportSeconds  print the metrics every N seconds (default 0, off)
+ */
+public class BufferArena {
+
+    // YA - what to do when a buffer is needed and the cap is reached
+    public enum ExhaustedPolicy {
+        HEAP, // YA - hand out an unpooled heap buffer, slower to write but never fails
+        FAIL  // YA - throw ExhaustedException, the caller sheds the work
+    }
+
+    public static class ExhaustedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    // YA - 4KB, 8KB, 16KB, 32KB, 64KB
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int CLASS_COUNT = 5;
+    private static final int SLAB_SIZE = 1 << 20; // 1MB
+
+    // YA - buffers a thread keeps per size class before returning them to their slab
+    private static final int THREAD_CACHE_SIZE = 8;
+
+    private static final BufferArena SHARED = new BufferArena(
+            Long.getLong("stomp.arena.maxBytes", 64L << 20),
+            ExhaustedPolicy.valueOf(System.getProperty("stomp.arena.policy", "heap").toUpperCase()));
+
+    static {
+        long period = Long.getLong("stomp.arena.reportSeconds", 0);
+        if (period > 0) {
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(period * 1000);
+                        System.out.println(SHARED);
+                    }
+                } catch (InterruptedException ignored) {}
+            }, "buffer-arena-report");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    private final long maxBytes;
+    private final ExhaustedPolicy policy;
+    private final SizeClass[] classes = new SizeClass[CLASS_COUNT];
+    private final ThreadLocal<ByteBuffer[][]> threadCaches;
+    private final ThreadLocal<int[]> threadCacheSizes;
+
+    // YA - metrics
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong leasedBytes = new AtomicLong();
+    private final AtomicLong highWaterBytes = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public BufferArena(long maxBytes, ExhaustedPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        for (int i = 0; i < CLASS_COUNT; i++)
+            classes[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+        threadCaches = ThreadLocal.withInitial(() -> new ByteBuffer[CLASS_COUNT][THREAD_CACHE_SIZE]);
+        threadCacheSizes = ThreadLocal.withInitial(() -> new int[CLASS_COUNT]);
+    }
+
+    // YA - the arena shared by all connections of the process
+    public static BufferArena shared() {
+        return SHARED;
+    }
+
+    // YA - largest buffer the arena pools, bigger requests get their own heap buffer
+    public static int maxPooledSize() {
+        return 1 << (MIN_CLASS_SHIFT + CLASS_COUNT - 1);
+    }
+
+    /**
+     * YA - lease a cleared buffer with a capacity of at least size bytes
+     * YA - the buffer must be given back with release() once it is no longer used
+     * @throws ExhaustedException if the cap is reached and the policy is FAIL
+     */
+    public ByteBuffer lease(int size) {
+        int index = classIndex(size);
+        if (index == -1)
+            return ByteBuffer.allocate(size); // YA - too big to pool
+
+        ByteBuffer buff = pollThreadCache(index);
+        if (buff == null)
+            buff = classes[index].lease();
+
+        if (buff == null) {
+            exhausted.incrementAndGet();
+            if (policy == ExhaustedPolicy.FAIL)
+                throw new ExhaustedException("buffer arena exhausted: " + this);
+            return ByteBuffer.allocate(classes[index].size);
+        }
+
+        long leased = leasedBytes.addAndGet(buff.capacity());
+        long high = highWaterBytes.get();
+        while (leased > high && !highWaterBytes.compareAndSet(high, leased))
+            high = highWaterBytes.get();
+
+        buff.clear();
+        return buff;
+    }
+
+    /**
+     * YA - give a leased buffer back, buffers that did not come from the arena are ignored
+     */
+    public void release(ByteBuffer buff) {
+        if (!buff.isDirect())
+            return; // YA - heap fallback or oversized buffer, left to the GC
+        int index = classIndex(buff.capacity());
+        if (index == -1 || classes[index].size != buff.capacity())
+            return;
+
+        leasedBytes.addAndGet(-buff.capacity());
+        if (!pushThreadCache(index, buff))
+            classes[index].release(buff);
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public long getLeasedBytes() {
+        return leasedBytes.get();
+    }
+
+    // YA - reserved bytes not leased, in slabs or in thread caches
+    public long getFreeBytes() {
+        return reservedBytes.get() - leasedBytes.get();
+    }
+
+    public long getHighWaterBytes() {
+        return highWaterBytes.get();
+    }
+
+    // YA - number of leases that found the arena at its cap
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferArena[reserved=" + getReservedBytes() + ", leased=" + getLeasedBytes()
+                + ", free=" + getFreeBytes() + ", highWater=" + getHighWaterBytes()
+                + ", max=" + maxBytes + ", exhausted=" + getExhaustedCount() + "]";
+    }
+
+    private static int classIndex(int size) {
+        if (size <= (1 << MIN_CLASS_SHIFT))
+            return 0;
+        int index = 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+        return index < CLASS_COUNT ? index : -1;
+    }
+
+    private ByteBuffer pollThreadCache(int index) {
+        int[] sizes = threadCacheSizes.get();
+        if (sizes[index] == 0)
+            return null;
+        ByteBuffer[] cache = threadCaches.get()[index];
+        ByteBuffer buff = cache[--sizes[index]];
+        cache[sizes[index]] = null;
+        return buff;
+    }
+
+    private boolean pushThreadCache(int index, ByteBuffer buff) {
+        int[] sizes = threadCacheSizes.get();
+        if (sizes[index] == THREAD_CACHE_SIZE)
+            return false;
+        threadCaches.get()[index][sizes[index]++] = buff;
+        return true;
+    }
+
+    // YA - reserve memory for a new slab, false if that would go over the cap
+    private boolean reserve(long bytes) {
+        long reserved = reservedBytes.get();
+        while (reserved + bytes <= maxBytes) {
+            if (reservedBytes.compareAndSet(reserved, reserved + bytes))
+                return true;
+            reserved = reservedBytes.get();
+        }
+        return false;
+    }
+
+    // YA - one slab of direct memory cut into buffers of the same size
+    private static class Slab {
+        final ByteBuffer[] free;
+        int freeCount;
+
+        Slab(int bufferSize) {
+            ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+            free = new ByteBuffer[SLAB_SIZE / bufferSize];
+            for (int i = 0; i < free.length; i++) {
+                memory.limit((i + 1) * bufferSize).position(i * bufferSize);
+                free[i] = memory.slice();
+            }
+            freeCount = free.length;
+        }
+
+        boolean isFull() {
+            return freeCount == 0;
+        }
+
+        boolean isUnused() {
+            return freeCount == free.length;
+        }
+    }
+
+    // YA - slabs of one size class, guarded by the instance lock
+    private class SizeClass {
+        final int size;
+        // YA - slabs that have free buffers, leases come from the head
+        final ArrayDeque<Slab> available = new ArrayDeque<>();
+        // YA - owning slab of every buffer of this class
+        final Map<ByteBuffer, Slab> owners = new IdentityHashMap<>();
+        int freeBuffers = 0;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        synchronized ByteBuffer lease() {
+            Slab slab = available.peek();
+            if (slab == null) {
+                if (!reserve(SLAB_SIZE))
+                    return null;
+                slab = new Slab(size);
+                for (ByteBuffer buff : slab.free)
+                    owners.put(buff, slab);
+                available.push(slab);
+                freeBuffers += slab.free.length;
+            }
+
+            ByteBuffer buff = slab.free[--slab.freeCount];
+            slab.free[slab.freeCount] = null;
+            freeBuffers--;
+            if (slab.isFull())
+                available.poll();
+            return buff;
+        }
+
+        synchronized void release(ByteBuffer buff) {
+            Slab slab = owners.get(buff);
+            if (slab == null)
+                return;
+
+            if (slab.isFull())
+                available.addLast(slab);
+            slab.free[slab.freeCount++] = buff;
+            freeBuffers++;
+
+            // YA - keep one slab worth of free buffers, give back any other slab that is unused
+            if (slab.isUnused() && freeBuffers - slab.free.length >= slab.free.length) {
+                available.remove(slab);
+                for (ByteBuffer b : slab.free)
+                    owners.remove(b);
+                freeBuffers -= slab.free.length;
+                reservedBytes.addAndGet(-SLAB_SIZE);
+            }
+        }
+    }
+}
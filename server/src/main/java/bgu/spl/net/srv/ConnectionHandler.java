@@ -5,7 +5,9 @@
  */
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.EncodableMessage;
 import java.io.Closeable;
+import java.io.IOException;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +21,31 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * sends a message that encodes itself; it is encoded before this method returns
+     */
+    void send(EncodableMessage msg);
+
+    /**
+     * starts heart-beating: a heart-beat is sent if nothing was sent for outgoingMillis and the
+     * connection is closed if nothing was received for a few incomingMillis; 0 disables a direction
+     */
+    default void heartbeat(long outgoingMillis, long incomingMillis) {
+    }
+
+    /**
+     * stops reading from the client for the given time, what was already read is still processed;
+     * used to slow down a client that sends faster than it is allowed to
+     */
+    default void pauseReads(long millis) {
+    }
+
+    /**
+     * closes the connection once what was sent so far is written, so a RECEIPT or ERROR sent
+     * right before disconnecting reaches the client; handlers that write synchronously just close
+     */
+    default void closeAfterFlush() throws IOException {
+        close();
+    }
+
 }
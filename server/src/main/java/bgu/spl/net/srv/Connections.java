@@ -1,19 +1,39 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.ChannelMessage;
+import bgu.spl.net.api.EncodableMessage;
 import java.io.IOException;
 
 public interface Connections<T> {
 
     boolean send(int connectionId, T msg); //YA - sends message to one specific client
 
+    boolean send(int connectionId, EncodableMessage msg); //YA - same, encoded straight into the client's write buffer
+
     void send(String channel, T msg); //YA - sends message to all clients that are subscribed to the channel
 
+    void sendToChannel(int channelId, ChannelMessage msg); //YA - same, the message is encoded once per subscriber
+
     void disconnect(int connectionId);
 
+    void heartbeat(int connectionId, long outgoingMillis, long incomingMillis); // YA - negotiated heart-beat, 0 = off
+
+    void pauseReads(int connectionId, long millis); // YA - stop reading from a client for a while (rate limits)
+
+    // YA - channels are known by int ids, interned from their names (ids are reused once a channel empties)
+    int channelId(String frame, int start, int end); // YA - id of the channel named frame[start, end), -1 if it has no subscribers
+    int channelId(java.nio.ByteBuffer data, int start, int end); // YA - same for raw bytes, -2 if they are not plain ASCII
+    String channelName(int channelId); // YA - the interned name, null if the id is free
+
     // YA - subscription management helpers (for STOMP)
-    void subscribe(int connectionId, String channel, int subscriptionId);
-    void unsubscribeFromChannel(int connectionId, String channel);
-    Integer getSubscriptionId(int connectionId, String channel);
-    java.util.Set<Integer> getSubscribers(String channel);
+    int subscribe(int connectionId, String frame, int start, int end, int subscriptionId); // YA - channel frame[start, end), returns its id
+    void unsubscribeFromChannel(int connectionId, int channelId);
+    int subscriberCount(int channelId);
+    java.util.Map<Integer, Integer> getSubscriptionsSnapshot(int channelId); // YA - connectionId -> subscriptionId copy
+
+    // YA - optional per-channel game summary stage (disabled unless the server enables it)
+    boolean summariesEnabled();
+    void aggregate(int channelId, String frame, int bodyStart, int bodyEnd); // YA - body is frame[bodyStart, bodyEnd)
+    long getSummary(int channelId, String reporter, StringBuilder out); // YA - appends it to out, returns the events left out of it, -1 if nothing was aggregated
 
 }
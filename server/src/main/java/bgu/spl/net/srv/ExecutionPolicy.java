@@ -0,0 +1,22 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YA - decides where the reactor processes bytes read from a connection
+ * YA - cheap input is processed right away on the selector thread, when the connection's actor is idle,
+ * YA - anything else is handed to the actor thread pool as before
+ * YA - called on the selector thread only
+ */
+public interface ExecutionPolicy {
+
+    // YA - always use the thread pool
+    ExecutionPolicy POOL = (data, length) -> false;
+
+    /**
+     * YA - @param data   the bytes read and not decoded yet are data[0, length), read with absolute gets,
+     * YA -               the buffer's position and limit must not be changed
+     * YA - @return true if processing them is cheap enough to run on the selector thread
+     */
+    boolean runInline(ByteBuffer data, int length);
+}
@@ -1,5 +1,6 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.EncodableMessage;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 
@@ -7,65 +8,225 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+    // YA - most bytes read for one connection per readiness event, so one bulk sender
+    // YA - cannot starve the others served by the selector thread
+    private static final int READ_BUDGET = 1 << 18; //256k
+
+    // YA - a client is disconnected after this many heart-beat intervals without traffic
+    private static final int HEARTBEAT_GRACE = 2;
+
+    // YA - longest wait (ms) for the output of a disconnected client to be written
+    private static final long CLOSE_LINGER = 5000;
+
+    // YA - reads and outbound buffers are leased from the shared off-heap arena
+    private static final BufferArena ARENA = BufferArena.shared();
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final Reactor<T> reactor;
+
+    // YA - outbound buffers ready to be written, guarded by writeLock
+    // YA - small messages are coalesced into the "filling" buffer, which is queued once it is full
+    // YA - or when the socket is ready and everything before it was written
+    private final Object writeLock = new Object();
+    // YA - the queues start with room for one or two buffers and grow when needed,
+    // YA - an idle connection should not hold three 16-slot arrays
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>(1);
+    private ByteBuffer filling = null;
+    // YA - true while the reactor listens for OP_WRITE on this channel (or was asked to)
+    private boolean writeArmed = false;
+    // YA - the buffer the selector thread is writing right now, released by it and not by close()
+    private ByteBuffer writing = null;
+    private boolean closed = false;
+    // YA - closeAfterFlush() was called, the selector thread closes once the queue is drained
+    private boolean closing = false;
+
+    // YA - negotiated heart-beat intervals in ms (0 = none) and the last traffic in each direction
+    // YA - all of these are only touched on the selector thread
+    private long heartbeatOut = 0;
+    private long heartbeatIn = 0;
+    private long lastRead;
+    private long lastWrite;
+    private HeartbeatTimer heartbeatTimer = null; // YA - created when a heart-beat is negotiated
+
+    // YA - reads stopped by pauseReads() until the resume timer expires, selector thread only
+    private boolean readsPaused = false;
+    private ResumeTimer resumeTimer = null;
+
+    // YA - bytes read from the socket and not decoded yet, guarded by inbound
+    // YA - reads go into one accumulation buffer, it is only queued in inbound when it is full
+    // YA - a single reusable task drains them, it is only submitted when not already pending
+    private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>(1);
+    private ByteBuffer accumulation = null;
+    private boolean readScheduled = false;
+    private final Runnable readTask = this::processInbound;
+    // YA - buffers taken by the running read task, only touched by it
+    private final ArrayDeque<ByteBuffer> draining = new ArrayDeque<>(1);
+
+    // YA - average bytes read per readiness event, used to size the next accumulation buffer
+    // YA - small for chat-like clients, up to the largest arena class for bulk reporters
+    private int readSizeAverage = BUFFER_ALLOCATION_SIZE;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            Reactor<T> reactor) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.reactor = reactor;
     }
 
+    /**
+     * YA - read until the socket is drained or the fairness budget is used up
+     * @return the read task if it has to be submitted, null otherwise
+     */
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        int total = 0;
+        boolean eof = false;
+        boolean schedule = false;
 
-        boolean success = false;
-        try {
-            success = chan.read(buf) != -1;
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+        synchronized (inbound) {
+            try {
+                while (total < READ_BUDGET) {
+                    if (accumulation == null) {
+                        accumulation = ARENA.lease(readBufferSize());
+                    } else if (!accumulation.hasRemaining()) {
+                        growAccumulation();
+                    }
 
-        if (success) {
-            buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            T response = protocol.process(nextMessage);
-                            if (response != null) {
-                                writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                            }
-                        }
+                    int n = chan.read(accumulation);
+                    if (n == -1) {
+                        eof = true;
+                        break;
                     }
-                } finally {
-                    releaseBuffer(buf);
+                    if (n == 0)
+                        break; // YA - EAGAIN
+                    total += n;
+                    if (accumulation.hasRemaining())
+                        break; // YA - short read, the socket is drained - saves the syscall that returns 0
                 }
-            };
-        } else {
-            releaseBuffer(buf);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                eof = true;
+            } catch (BufferArena.ExhaustedException ex) {
+                // YA - out of buffer memory, shed this connection rather than the whole server
+                System.out.println(ex.getMessage());
+                eof = true;
+            }
+
+            if (total > 0) {
+                if (heartbeatIn > 0)
+                    lastRead = TimerWheel.now();
+                readSizeAverage += (total - readSizeAverage) / 4;
+                if (!readScheduled) {
+                    readScheduled = true;
+                    schedule = true;
+                }
+            }
+
+            // YA - an idle connection keeps no buffer
+            if (accumulation != null && accumulation.position() == 0) {
+                ARENA.release(accumulation);
+                accumulation = null;
+            }
+        }
+
+        // YA - bytes read together with the end of stream are processed first,
+        // YA - the next readiness event sees the end of stream again and closes
+        if (eof && total == 0) {
             close();
             return null;
         }
+        return schedule ? readTask : null;
+    }
+
+    /**
+     * YA - true if what was read and not decoded yet may be processed on the selector thread
+     * YA - only when it all sits in the accumulation buffer
+     */
+    /*package*/ boolean canRunInline(ExecutionPolicy policy) {
+        synchronized (inbound) {
+            return inbound.isEmpty() && accumulation != null
+                    && policy.runInline(accumulation, accumulation.position());
+        }
+    }
+
+    // YA - the accumulation buffer is full: move to a larger class, or queue it once it is the largest
+    private void growAccumulation() {
+        ByteBuffer full = accumulation;
+        if (full.capacity() < BufferArena.maxPooledSize()) {
+            accumulation = ARENA.lease(full.capacity() * 2);
+            full.flip();
+            accumulation.put(full);
+        } else {
+            full.flip();
+            inbound.add(full);
+            accumulation = ARENA.lease(readBufferSize());
+            return;
+        }
+        ARENA.release(full);
+    }
 
+    private int readBufferSize() {
+        return Math.max(1, Math.min(readSizeAverage, BufferArena.maxPooledSize()));
+    }
+
+    private void processInbound() {
+        boolean done = false;
+        try {
+            while (true) {
+                synchronized (inbound) {
+                    while (!inbound.isEmpty())
+                        draining.add(inbound.poll());
+                    if (accumulation != null && accumulation.position() > 0) {
+                        accumulation.flip();
+                        draining.add(accumulation);
+                        accumulation = null;
+                    }
+                    if (draining.isEmpty()) {
+                        readScheduled = false;
+                        done = true;
+                        return;
+                    }
+                }
+
+                ByteBuffer buf;
+                while ((buf = draining.poll()) != null) {
+                    try {
+                        while (buf.hasRemaining()) {
+                            T nextMessage = encdec.decode(buf);
+                            if (nextMessage != null) {
+                                T response = protocol.process(nextMessage);
+                                if (response != null) {
+                                    send(response);
+                                }
+                            }
+                        }
+                    } finally {
+                        ARENA.release(buf);
+                    }
+                }
+            }
+        } finally {
+            if (!done) {
+                // YA - the protocol threw, drop what was taken and let the next read schedule again
+                ByteBuffer buf;
+                while ((buf = draining.poll()) != null)
+                    ARENA.release(buf);
+                synchronized (inbound) {
+                    readScheduled = false;
+                }
+            }
+        }
     }
 
     public void close() {
@@ -75,64 +236,282 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             ex.printStackTrace();
         }
 
+        // YA - give the undecoded input and the unsent output back to the arena
+        synchronized (inbound) {
+            while (!inbound.isEmpty())
+                ARENA.release(inbound.poll());
+            if (accumulation != null)
+                ARENA.release(accumulation);
+            accumulation = null;
+        }
+        boolean first;
+        synchronized (writeLock) {
+            first = !closed;
+            closed = true;
+            for (ByteBuffer buf : writeQueue) {
+                if (buf != writing)
+                    ARENA.release(buf);
+            }
+            writeQueue.clear();
+            if (filling != null)
+                ARENA.release(filling);
+            filling = null;
+        }
+
         // YA - notify connections about disconnect
-        if (protocol.shouldTerminate()) {
+        if (first) {
             reactor.notifyDisconnect(this);
         }
     }
 
 
+    /**
+     * YA - close once the queued output was written; a client that does not read it
+     * YA - is closed anyway after CLOSE_LINGER
+     */
+    @Override
+    public void closeAfterFlush() {
+        boolean now;
+        synchronized (writeLock) {
+            if (closed || closing)
+                return;
+            closing = true;
+            now = !writeArmed; // YA - nothing queued, continueWrite will not be called
+        }
+        if (now) {
+            close();
+            return;
+        }
+        reactor.runOnSelector(() -> reactor.timers().schedule(new TimerWheel.Timer() {
+            @Override
+            protected void expire(long now) {
+                close();
+            }
+        }, CLOSE_LINGER));
+    }
+
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
-    public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
+    /*package*/ SocketChannel channel() {
+        return chan;
+    }
+
+    public MessagingProtocol<T> getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public void heartbeat(long outgoingMillis, long incomingMillis) {
+        reactor.runOnSelector(() -> {
+            heartbeatOut = outgoingMillis;
+            heartbeatIn = incomingMillis;
+            lastRead = lastWrite = TimerWheel.now();
+            if (heartbeatTimer == null)
+                heartbeatTimer = new HeartbeatTimer();
+            scheduleHeartbeat(lastRead);
+        });
+    }
+
+    // YA - selector thread only: wake up when the next heart-beat is due or the client is overdue
+    private void scheduleHeartbeat(long now) {
+        long next = Long.MAX_VALUE;
+        if (heartbeatOut > 0)
+            next = Math.min(next, lastWrite + heartbeatOut - now);
+        if (heartbeatIn > 0)
+            next = Math.min(next, lastRead + heartbeatIn * HEARTBEAT_GRACE - now);
+        if (next != Long.MAX_VALUE)
+            reactor.timers().schedule(heartbeatTimer, Math.max(1, next));
+        else
+            reactor.timers().cancel(heartbeatTimer);
+    }
+
+    // YA - heart-beat and idle check of this connection, runs on the selector thread
+    private class HeartbeatTimer extends TimerWheel.Timer {
+        @Override
+        protected void expire(long now) {
+            synchronized (writeLock) {
+                if (closed)
                     return;
-                } else {
-                    writeQueue.remove();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            }
+
+            if (heartbeatIn > 0 && !readsPaused && now - lastRead >= heartbeatIn * HEARTBEAT_GRACE) {
+                // YA - silent for too long, probably half-open
+                System.out.println("Closing connection silent for " + (now - lastRead) + "ms");
                 close();
+                return;
             }
-        }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+            if (heartbeatOut > 0 && now - lastWrite >= heartbeatOut)
+                writeHeartbeat(now);
+
+            scheduleHeartbeat(now);
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    @Override
+    public void pauseReads(long millis) {
+        reactor.runOnSelector(() -> {
+            synchronized (writeLock) {
+                if (closed)
+                    return;
+            }
+            if (resumeTimer == null)
+                resumeTimer = new ResumeTimer();
+            else if (resumeTimer.isScheduled() && resumeTimer.until >= TimerWheel.now() + millis)
+                return; // YA - already paused for longer
+            resumeTimer.until = TimerWheel.now() + millis;
+            reactor.timers().schedule(resumeTimer, millis);
+            readsPaused = true;
+            reactor.setReading(chan, false);
+        });
+    }
+
+    // YA - selector thread only: OP_READ unless reads are paused
+    /*package*/ int readOps() {
+        return readsPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    // YA - ends a pause of the reads, runs on the selector thread
+    private class ResumeTimer extends TimerWheel.Timer {
+        long until;
+
+        @Override
+        protected void expire(long now) {
+            readsPaused = false;
+            lastRead = now; // YA - the client was not silent, we were not listening
+            reactor.setReading(chan, true);
         }
+    }
 
-        buff.clear();
-        return buff;
+    // YA - a heart-beat is one EOL written straight to the socket, only when no frame is pending
+    private void writeHeartbeat(long now) {
+        boolean failed = false;
+        synchronized (writeLock) {
+            if (!writeQueue.isEmpty() || (filling != null && filling.position() > 0))
+                return; // YA - output is already on its way
+            try {
+                chan.write(reactor.heartbeatBuffer());
+                lastWrite = now;
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+        if (failed)
+            close();
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    public void continueWrite() {
+        while (true) {
+            ByteBuffer top;
+            synchronized (writeLock) {
+                if (closed)
+                    return;
+                top = writeQueue.peek();
+                if (top == null) {
+                    if (filling == null || filling.position() == 0) {
+                        writeArmed = false;
+                        break;
+                    }
+                    // YA - everything before it was written, send what was coalesced so far
+                    filling.flip();
+                    top = filling;
+                    filling = null;
+                    writeQueue.add(top);
+                }
+                writing = top;
+            }
+
+            try {
+                if (chan.write(top) > 0 && heartbeatOut > 0)
+                    lastWrite = TimerWheel.now();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                close();
+            }
+
+            synchronized (writeLock) {
+                writing = null;
+                if (closed) {
+                    ARENA.release(top);
+                    return;
+                }
+                if (top.hasRemaining())
+                    return;
+                // YA - only the selector thread removes from the queue, so top is still its head
+                writeQueue.poll();
+            }
+            ARENA.release(top); // YA - pooled outbound buffer, ignored for the rest
+        }
+
+        boolean drained;
+        synchronized (writeLock) {
+            drained = closing;
+        }
+        if (drained || protocol.shouldTerminate()) close();
+        else reactor.updateInterestedOps(chan, readOps());
     }
 
     @Override
     public void send(T msg) {
         // YA ignore null messages
         if (msg == null) return;
+        enqueue(msg, null);
+    }
 
-        // YA encode message to bytes and enqueue for writing
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));// YA decode from string to bytes
-        //  enqueue in writeQueue for the continueWrite method can write it when the socket is ready
+    @Override
+    public void send(EncodableMessage msg) {
+        if (msg == null) return;
+        enqueue(null, msg);
+    }
+
+    /**
+     * YA encode exactly one of msg / encodable into the filling buffer, a pooled direct buffer
+     * YA the channel writes it without another copy
+     */
+    private void enqueue(T msg, EncodableMessage encodable) {
+        boolean arm;
+        synchronized (writeLock) {
+            if (closed)
+                return; // YA nobody will write it
+            if (filling == null)
+                filling = leaseOutbound();
+
+            if (filling == null || !encodeTo(msg, encodable, filling)) {
+                if (filling != null && filling.position() > 0) {
+                    // YA the filling buffer is full, queue it and start a new one
+                    filling.flip();
+                    writeQueue.add(filling);
+                    filling = leaseOutbound();
+                }
+                if (filling == null || !encodeTo(msg, encodable, filling)) {
+                    // YA larger than a pooled buffer - encode to its own array
+                    writeQueue.add(ByteBuffer.wrap(encodable != null ? encodable.encode() : encdec.encode(msg)));
+                }
+            }
+
+            arm = !writeArmed;
+            writeArmed = true;
+        }
 
         // YA make sure reactor will also listen for OP_WRITE - "call me when you can read and write"
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // YA only asked once until the queue was drained
+        if (arm)
+            reactor.armWrite(this);
+    }
+
+    // YA a pooled outbound buffer, or null if the arena is exhausted and refuses to fall back
+    private static ByteBuffer leaseOutbound() {
+        try {
+            return ARENA.lease(BUFFER_ALLOCATION_SIZE);
+        } catch (BufferArena.ExhaustedException ex) {
+            return null;
+        }
+    }
+
+    private boolean encodeTo(T msg, EncodableMessage encodable, ByteBuffer buf) {
+        return encodable != null ? encodable.encodeTo(buf) : encdec.encodeTo(msg, buf);
     }
 
 }
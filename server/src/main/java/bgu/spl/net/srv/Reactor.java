@@ -7,12 +7,15 @@ import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -31,23 +34,47 @@ public class Reactor<T> implements Server<T> {
     // YA - factory for creating a new encoder/decoder per connection
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
+    // YA - decides which reads are processed on the selector thread instead of the pool
+    private final ExecutionPolicy executionPolicy;
 
     private Selector selector;
     private Thread selectorThread;
 
+    // YA - how the selector thread waits, see WaitStrategy
+    private final WaitStrategy waitStrategy = WaitStrategy.fromSystemProperties();
+
+    // YA - heart-beat timers of all connections, 100ms ticks, 512 slots (51.2s per turn)
+    private final TimerWheel timers = new TimerWheel(100, 512);
+    // YA - a single EOL, the heart-beat sent to clients; only written by the selector thread
+    private final ByteBuffer heartbeat = ByteBuffer.allocateDirect(1).put(0, (byte) '\n');
+
     // YA - queue of tasks that must run on the selector thread used to safely update interestOps from worker threads
     private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
 
+    // YA - handlers that have output and wait for OP_WRITE to be set by the selector thread
+    // YA - a handler is queued at most once until its output is drained, so no task object per send
+    private final ArrayDeque<NonBlockingConnectionHandler<?>> pendingWriters = new ArrayDeque<>();
+
     public Reactor(
             int numThreads,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, port, protocolFactory, readerFactory, connections -> ExecutionPolicy.POOL);
+    }
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            Function<Connections<T>, ExecutionPolicy> policyFactory) {
 
         this.pool = new ActorThreadPool(numThreads);
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
+        this.executionPolicy = policyFactory.apply(connections);
     }
 
     @Override
@@ -70,9 +97,12 @@ public class Reactor<T> implements Server<T> {
 
             while (!Thread.currentThread().isInterrupted()) {
 
-                selector.select(); // YA - wait for I/O events
+                // YA - wait for I/O events, or for the next timer tick if timers are pending
+                waitStrategy.select(selector, timers.isEmpty() ? 0 : timers.getTickMillis());
                 runSelectionThreadTasks(); // YA - run pending selector updates
 
+                // YA - the selected key set allocates a node per ready key and an iterator per select,
+                // YA - about 30 bytes per SEND under load; select(Consumer) would avoid it but needs Java 11
                 for (SelectionKey key : selector.selectedKeys()) {
 
                     if (!key.isValid()) {
@@ -88,6 +118,8 @@ public class Reactor<T> implements Server<T> {
 
                 // YA - clear keys to prepare for next select()
                 selector.selectedKeys().clear();
+
+                timers.advance(TimerWheel.now()); // YA - heart-beats and idle connections
             }
 
         } catch (ClosedSelectorException ex) {
@@ -108,11 +140,59 @@ public class Reactor<T> implements Server<T> {
             key.interestOps(ops);
         } else {
             selectorTasks.add(() -> key.interestOps(ops));
-            selector.wakeup();
+            waitStrategy.wakeup(selector);
         }
     }
 
 
+    // YA - run a task on the selector thread, right away if already on it
+    /*package*/ void runOnSelector(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            waitStrategy.wakeup(selector);
+        }
+    }
+
+    // YA - selector thread only
+    /*package*/ TimerWheel timers() {
+        return timers;
+    }
+
+    // YA - selector thread only
+    /*package*/ ByteBuffer heartbeatBuffer() {
+        heartbeat.clear();
+        return heartbeat;
+    }
+
+    /*package*/ void armWrite(NonBlockingConnectionHandler<?> handler) {
+        // YA - same as updateInterestedOps(chan, READ | WRITE) without creating a task
+        if (Thread.currentThread() == selectorThread) {
+            setReadWrite(handler);
+        } else {
+            synchronized (pendingWriters) {
+                pendingWriters.add(handler);
+            }
+            waitStrategy.wakeup(selector);
+        }
+    }
+
+    private void setReadWrite(NonBlockingConnectionHandler<?> handler) {
+        SelectionKey key = handler.channel().keyFor(selector);
+        if (key != null && key.isValid())
+            key.interestOps(handler.readOps() | SelectionKey.OP_WRITE);
+    }
+
+    // YA - selector thread only: start or stop listening for OP_READ, OP_WRITE is left as it is
+    /*package*/ void setReading(SocketChannel chan, boolean reading) {
+        SelectionKey key = chan.keyFor(selector);
+        if (key == null || !key.isValid())
+            return;
+        int ops = key.interestOps();
+        key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
     private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
     SocketChannel clientChan = serverChan.accept();
     clientChan.configureBlocking(false);
@@ -121,7 +201,7 @@ public class Reactor<T> implements Server<T> {
     int connectionId = idCounter.getAndIncrement();
 
     // YA - create protocol & encoder/decoder
-    StompMessagingProtocol<T> protocol = (StompMessagingProtocol<T>) protocolFactory.get();
+    MessagingProtocol<T> protocol = protocolFactory.get();
     MessageEncoderDecoder<T> encdec = readerFactory.get();
 
     // YA - create a NonBlockingConnectionHandler per client
@@ -136,7 +216,8 @@ public class Reactor<T> implements Server<T> {
     connections.register(connectionId, handler);
 
     // YA - initialize protocol with connectionId and connections
-    protocol.start(connectionId, connections);
+    if (protocol instanceof StompMessagingProtocol)
+        ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
 
     // YA - register client channel for READ events
     clientChan.register(selector, SelectionKey.OP_READ, handler);
@@ -152,8 +233,9 @@ public class Reactor<T> implements Server<T> {
             // YA - read bytes and possibly produce a STOMP frame
             Runnable task = handler.continueRead();
 
-            // YA - if a full message was decoded, submit protocol processing
-            if (task != null) {
+            // YA - if bytes were read, process them inline when cheap and the actor is idle,
+            // YA - otherwise submit protocol processing
+            if (task != null && !runInline(handler, task)) {
                 pool.submit(handler, task);
             }
         }
@@ -164,18 +246,44 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
+    private boolean runInline(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        if (!handler.canRunInline(executionPolicy))
+            return false;
+        try {
+            return pool.tryRunInline(handler, task);
+        } catch (RuntimeException ex) {
+            // YA - same as a failing pool task, the selector thread keeps going
+            ex.printStackTrace();
+            return true;
+        }
+    }
+
     private void runSelectionThreadTasks() {
         // YA - execute selector updates requested by worker threads
         while (!selectorTasks.isEmpty()) {
             selectorTasks.remove().run();
         }
+
+        while (true) {
+            NonBlockingConnectionHandler<?> handler;
+            synchronized (pendingWriters) {
+                handler = pendingWriters.poll();
+            }
+            if (handler == null)
+                break;
+            setReadWrite(handler);
+        }
     }
 
     // YA - notify connections that handler is disconnected
+    // YA - called once per handler; if the client went away without DISCONNECT (closed socket,
+    // YA - missed heart-beats), or an ERROR left its cleanup for later, the protocol cleans up on the
+    // YA - connection's actor, after any pending frames; connectionLost() does nothing otherwise
 public void notifyDisconnect(NonBlockingConnectionHandler<T> handler) {
-    // YA - iterate and find connectionId
-    // (simple approach: let protocol already request disconnect)
-    // connections.disconnect(connectionId); // already handled by protocol
+    MessagingProtocol<T> protocol = handler.getProtocol();
+    if (protocol instanceof StompMessagingProtocol) {
+        pool.submit(handler, ((StompMessagingProtocol<T>) protocol)::connectionLost);
+    }
 }
 
 
@@ -7,6 +7,7 @@ import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.Closeable;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -74,4 +75,24 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server that processes
+     * cheap input on its selector thread
+     * @param nthreads Number of threads available for protocol processing
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param policyFactory Creates the ExecutionPolicy of the server from its Connections
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            Function<Connections<T>, ExecutionPolicy> policyFactory) {
+        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory, policyFactory);
+    }
+
 }
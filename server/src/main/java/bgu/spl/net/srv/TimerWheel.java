@@ -0,0 +1,118 @@
+package bgu.spl.net.srv;
+
+/**
+ * YA - hashed timer wheel driven by the reactor's selector thread
+ * YA - a timer sits in the slot of its deadline tick, so scheduling and cancelling are O(1)
+ * YA - and each tick only looks at one slot, however many connections have timers
+ * YA - timers are intrusive (a connection reuses its own Timer), nothing is allocated per schedule
+ * YA - not thread safe, used from the selector thread only
+ */
+public class TimerWheel {
+
+    /**
+     * YA - a timer, subclassed by its owner
+     */
+    public abstract static class Timer {
+        private Timer next;
+        private Timer prev;
+        private int slot = -1;
+        private long rounds;
+
+        /**
+         * YA - called on the selector thread when the timer is due
+         * @param now the current time in milliseconds (System.nanoTime based)
+         */
+        protected abstract void expire(long now);
+
+        public boolean isScheduled() {
+            return slot != -1;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[] slots;
+    private final int mask;
+    private long currentTick;
+    private int size = 0;
+
+    public TimerWheel(long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("wheel size must be a power of two");
+        this.tickMillis = tickMillis;
+        this.slots = new Timer[wheelSize];
+        this.mask = wheelSize - 1;
+        this.currentTick = now() / tickMillis;
+    }
+
+    // YA - the clock timers run on, in milliseconds
+    public static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * YA - (re)schedule a timer to expire after delayMillis, rounded up to the next tick
+     */
+    public void schedule(Timer timer, long delayMillis) {
+        cancel(timer);
+
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        int slot = (int) ((currentTick + ticks) & mask);
+        timer.rounds = (ticks - 1) / slots.length;
+        timer.slot = slot;
+
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[slot] = timer;
+        size++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.slot == -1)
+            return;
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.next = timer.prev = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * YA - expire every timer due by now, a timer may reschedule itself from expire()
+     */
+    public void advance(long now) {
+        long targetTick = now / tickMillis;
+        while (currentTick < targetTick && size > 0) {
+            currentTick++;
+            int slot = (int) (currentTick & mask);
+
+            Timer timer = slots[slot];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                } else {
+                    cancel(timer);
+                    timer.expire(now);
+                }
+                timer = next;
+            }
+        }
+        // YA - nothing scheduled, the wheel catches up with the clock at once
+        if (size == 0)
+            currentTick = Math.max(currentTick, targetTick);
+    }
+}
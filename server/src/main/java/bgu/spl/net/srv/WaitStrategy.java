@@ -0,0 +1,156 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YA - how the reactor's selector thread waits for I/O and for work queued by other threads
+ * YA - chosen with -Dstomp.wait=blocking|backoff|hybrid (default blocking):
+ * YA -   blocking  select() and selector.wakeup(), no CPU used while idle
+ * YA -   backoff   selectNow() in a loop, spinning, then yielding, then parking for a short while
+ * YA -   hybrid    selectNow() for a time slice after the last activity, then a blocking select()
+ */
+public interface WaitStrategy {
+
+    /**
+     * YA - wait until a channel is ready, wakeup() was called or timeoutMillis passed (0 = no timeout),
+     * YA - on the selector thread only
+     * @return the number of channels ready
+     */
+    int select(Selector selector, long timeoutMillis) throws IOException;
+
+    /**
+     * YA - make the selector thread come back from select(), called by other threads after queueing work
+     */
+    void wakeup(Selector selector);
+
+    static WaitStrategy fromSystemProperties() {
+        String name = System.getProperty("stomp.wait", "blocking");
+        switch (name) {
+            case "blocking":
+                return new Blocking();
+            case "backoff":
+                return new Backoff(
+                        Integer.getInteger("stomp.wait.spins", 10_000),
+                        Integer.getInteger("stomp.wait.yields", 100),
+                        Long.getLong("stomp.wait.parkMicros", 50) * 1000);
+            case "hybrid":
+                return new Hybrid(Long.getLong("stomp.wait.sliceMicros", 200) * 1000);
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy: " + name + " (use blocking, backoff or hybrid)");
+        }
+    }
+
+    // YA - the original behavior
+    class Blocking implements WaitStrategy {
+        @Override
+        public int select(Selector selector, long timeoutMillis) throws IOException {
+            return timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.select();
+        }
+
+        @Override
+        public void wakeup(Selector selector) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * YA - never blocks in the selector, wakeup() is a flag plus an unpark instead of a system call
+     * YA - spins while work keeps coming, then yields, then parks for parkNanos at a time
+     */
+    class Backoff implements WaitStrategy {
+        private final int spins;
+        private final int yields;
+        private final long parkNanos;
+
+        private volatile boolean signalled = false;
+        private volatile Thread waiter = null;
+
+        public Backoff(int spins, int yields, long parkNanos) {
+            this.spins = spins;
+            this.yields = yields;
+            this.parkNanos = parkNanos;
+        }
+
+        @Override
+        public int select(Selector selector, long timeoutMillis) throws IOException {
+            waiter = Thread.currentThread();
+            long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+            for (int idle = 0; ; idle++) {
+                int ready = selector.selectNow();
+                if (ready > 0 || signalled) {
+                    signalled = false;
+                    return ready;
+                }
+                if (timeoutMillis > 0 && idle >= spins && System.nanoTime() - deadline >= 0)
+                    return 0;
+
+                if (idle < spins) {
+                    // YA - busy spin
+                } else if (idle < spins + yields) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+            }
+        }
+
+        @Override
+        public void wakeup(Selector selector) {
+            signalled = true;
+            Thread thread = waiter;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * YA - polls with selectNow() for sliceNanos after the last event, so bursts are served
+     * YA - without system calls for waking up, then blocks in select() until the next event
+     */
+    class Hybrid implements WaitStrategy {
+        private final long sliceNanos;
+
+        private volatile boolean signalled = false;
+        private volatile boolean blocking = false;
+        private long lastActivity = System.nanoTime();
+
+        public Hybrid(long sliceNanos) {
+            this.sliceNanos = sliceNanos;
+        }
+
+        @Override
+        public int select(Selector selector, long timeoutMillis) throws IOException {
+            while (true) {
+                int ready = selector.selectNow();
+                if (ready > 0 || signalled) {
+                    signalled = false;
+                    lastActivity = System.nanoTime();
+                    return ready;
+                }
+
+                if (System.nanoTime() - lastActivity >= sliceNanos) {
+                    // YA - slice used up, block; wakeup() sees the flag and calls selector.wakeup()
+                    blocking = true;
+                    try {
+                        if (!signalled)
+                            ready = timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.select();
+                    } finally {
+                        blocking = false;
+                    }
+                    signalled = false;
+                    lastActivity = System.nanoTime();
+                    return ready;
+                }
+            }
+        }
+
+        @Override
+        public void wakeup(Selector selector) {
+            signalled = true;
+            if (blocking)
+                selector.wakeup();
+        }
+    }
+}